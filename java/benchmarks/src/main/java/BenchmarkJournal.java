@@ -0,0 +1,52 @@
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+
+import pizzastore.bench.JournalTarget;
+
+/**
+ * This class implements the journal benchmark operations on top of
+ * EventJournal and JournalReader. It is loaded by name from the JMH
+ * benchmarks. EventJournal drops events once its writer falls too far
+ * behind, so placeOrder waits for the writer instead; the benchmarks then
+ * measure what the writer sustains rather than how fast events are dropped.
+ *
+ */
+public class BenchmarkJournal implements JournalTarget {
+
+   private File _dir;
+   private EventJournal _journal;
+
+   public void open(String dir, int segmentBytes, long flushMillis) throws Exception {
+      this._dir = new File(dir);
+      this._journal = new EventJournal(this._dir, segmentBytes, flushMillis);
+   }
+
+   public void placeOrder(int orderID, String login, int storeID, String[] items) {
+      // room for the order and its lines
+      while (this._journal.getAppended() - this._journal.getWritten() > EventJournal.MAX_QUEUED - 1024) {
+         LockSupport.parkNanos(50000L);
+      }
+      this._journal.orderCreated(orderID, login, storeID, 9.99 * items.length, "incomplete");
+      for (String item : items) {
+         this._journal.lineAdded(orderID, item, 1, 9.99);
+      }
+   }
+
+   public void statusChanged(int orderID, String oldStatus, String newStatus) {
+      // placeOrder left room for it
+      this._journal.statusChanged(orderID, oldStatus, newStatus);
+   }
+
+   public void sync() throws Exception {
+      this._journal.sync();
+   }
+
+   public int replay() throws Exception {
+      return new JournalReader(this._dir).rebuildOrders().size();
+   }
+
+   public void close() {
+      this._journal.close();
+   }
+
+}//end BenchmarkJournal
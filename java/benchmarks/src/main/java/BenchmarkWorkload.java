@@ -0,0 +1,99 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import pizzastore.bench.Workload;
+
+/**
+ * This class implements the benchmark operations on top of the PizzaStore
+ * helpers. It lives in the default package next to PizzaStore and is
+ * loaded by name from the JMH benchmarks.
+ *
+ */
+public class BenchmarkWorkload implements Workload {
+
+   private PizzaStore _esql;
+   private final List<String> _items = new ArrayList<String>();
+   private final List<String> _logins = new ArrayList<String>();
+   private final List<Integer> _stores = new ArrayList<Integer>();
+   private final List<String[]> _stateCities = new ArrayList<String[]>();
+
+   public void setUp(String dbname, String port, String user, String passwd, String dataDir) throws Exception {
+      Class.forName("org.postgresql.Driver");
+      this._esql = new PizzaStore(dbname, port, user, passwd);
+      FixtureLoader.load(this._esql, dataDir);
+
+      for (List<String> row : this._esql.executeQueryAndReturnResult("SELECT itemName FROM Items;")) {
+         this._items.add(row.get(0).trim());
+      }
+      for (List<String> row : this._esql.executeQueryAndReturnResult("SELECT login FROM Users;")) {
+         this._logins.add(row.get(0).trim());
+      }
+      for (List<String> row : this._esql.executeQueryAndReturnResult("SELECT storeID FROM Store;")) {
+         this._stores.add(Integer.parseInt(row.get(0).trim()));
+      }
+      for (List<String> row : this._esql.executeQueryAndReturnResult("SELECT DISTINCT state, city FROM Store;")) {
+         this._stateCities.add(new String[] { row.get(0).trim(), row.get(1).trim() });
+      }
+   }//end setUp
+
+   public List<String> itemNames() {
+      return this._items;
+   }
+
+   public List<String> logins() {
+      return this._logins;
+   }
+
+   public List<Integer> storeIDs() {
+      return this._stores;
+   }
+
+   public List<String[]> stateCities() {
+      return this._stateCities;
+   }
+
+   public int validOrder(String itemName) {
+      return PizzaStore.validOrder(this._esql, itemName);
+   }
+
+   public Object priceQuery(String itemName) throws Exception {
+      return this._esql.executeQueryAndReturnResult("SELECT price FROM Items WHERE itemName = ?;", itemName);
+   }
+
+   public int validStore(String storeID) {
+      return PizzaStore.validStore(this._esql, storeID);
+   }
+
+   public Object storeSearch(String state, String city) throws Exception {
+      StoreDirectory directory = this._esql.getStoreDirectory();
+      directory.cities(state);
+      return directory.find(state, city, Boolean.TRUE, 3.0);
+   }
+
+   public int generateOrderID(String storeID) {
+      return PizzaStore.generateOrderID(this._esql, storeID);
+   }
+
+   public int placeOrder(String login, int storeID, String[] items) throws Exception {
+      int orderID = PizzaStore.generateOrderID(this._esql, String.valueOf(storeID));
+      OrderBuilder order = new OrderBuilder(orderID, login, storeID, new Timestamp(System.currentTimeMillis()));
+      for (String itemName : items) {
+         MenuCatalog.MenuItem item = PizzaStore.lookupItem(this._esql, itemName);
+         order.addLine(item.name, item.price, 1);
+      }
+      order.commit(this._esql, "incomplete");
+      return orderID;
+   }//end placeOrder
+
+   public Object orderHistory(String login) throws Exception {
+      return new OrderHistory(this._esql, login, 10).next();
+   }
+
+   public void close() {
+      if (this._esql != null) {
+         this._esql.cleanup();
+      }
+   }
+
+}//end BenchmarkWorkload
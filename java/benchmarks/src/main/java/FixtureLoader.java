@@ -0,0 +1,35 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class prepares a benchmark database: it fills empty tables from
+ * data/*.csv with BulkLoader.
+ *
+ */
+public class FixtureLoader {
+
+   /**
+    * Loads every empty table from the fixtures. The tables themselves are
+    * created by SchemaMigrator when the PizzaStore is constructed.
+    *
+    * @param esql the PizzaStore whose pool is used
+    * @param dataDir the directory holding the CSV fixtures
+    * @throws java.sql.SQLException when the rows cannot be written
+    * @throws java.io.IOException when a fixture cannot be read
+    */
+   public static void load(PizzaStore esql, String dataDir) throws SQLException, IOException {
+      List<String> empty = new ArrayList<String>();
+      for (BulkLoader.Table table : BulkLoader.TABLES) {
+         if (esql.executeQuery("SELECT 1 FROM " + table.name + " LIMIT 1;") == 0) {
+            empty.add(table.name);
+         }
+      }
+      for (BulkLoader.Result result : new BulkLoader(esql, new File(dataDir), 3).load(empty)) {
+         System.out.println("Loaded " + result);
+      }
+   }//end load
+
+}//end FixtureLoader
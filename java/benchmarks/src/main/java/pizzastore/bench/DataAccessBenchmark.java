@@ -0,0 +1,114 @@
+package pizzastore.bench;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the PizzaStore data-access layer against a local Postgres.
+ *
+ * Throughput is reported in ops/ms and SampleTime gives the latency
+ * percentiles (p50, p90, p99, ...). Run with
+ *
+ *    java -jar target/benchmarks.jar -p dbname=pizzastore_bench -p port=5432 -p user=$USER
+ *
+ * Use a dedicated database: the order benchmarks insert rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataAccessBenchmark {
+
+   @Param("pizzastore_bench")
+   public String dbname;
+
+   @Param("5432")
+   public String port;
+
+   @Param("postgres")
+   public String user;
+
+   @Param("")
+   public String passwd;
+
+   @Param("../../data")
+   public String dataDir;
+
+   private Workload workload;
+   private List<String> items;
+   private List<String> logins;
+   private List<Integer> stores;
+   private List<String[]> stateCities;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      this.workload = (Workload) Class.forName("BenchmarkWorkload").getDeclaredConstructor().newInstance();
+      this.workload.setUp(dbname, port, user, passwd, dataDir);
+      this.items = workload.itemNames();
+      this.logins = workload.logins();
+      this.stores = workload.storeIDs();
+      this.stateCities = workload.stateCities();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this.workload.close();
+   }
+
+   private static <T> T pick(List<T> list) {
+      return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+   }
+
+   @Benchmark
+   public int menuLookup() throws Exception {
+      return workload.validOrder(pick(items));
+   }
+
+   @Benchmark
+   public Object menuPriceQuery() throws Exception {
+      return workload.priceQuery(pick(items));
+   }
+
+   @Benchmark
+   public int validStore() throws Exception {
+      return workload.validStore(String.valueOf(pick(stores)));
+   }
+
+   @Benchmark
+   public Object storeSearch() throws Exception {
+      String[] stateCity = pick(stateCities);
+      return workload.storeSearch(stateCity[0], stateCity[1]);
+   }
+
+   @Benchmark
+   public int generateOrderID() throws Exception {
+      return workload.generateOrderID(String.valueOf(pick(stores)));
+   }
+
+   @Benchmark
+   public int placeOrder() throws Exception {
+      return workload.placeOrder(pick(logins), pick(stores), new String[] { pick(items), pick(items) });
+   }
+
+   @Benchmark
+   public Object orderHistory() throws Exception {
+      return workload.orderHistory(pick(logins));
+   }
+}
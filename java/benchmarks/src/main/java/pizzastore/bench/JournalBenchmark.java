@@ -0,0 +1,141 @@
+package pizzastore.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the event journal in a temporary directory; no database is
+ * needed. append measures what an order costs the menu thread, which only
+ * queues the events; appendDurable also waits until a batch of orders is
+ * forced to disk, which bounds what the writer thread can sustain. replay
+ * rebuilds REPLAY_ORDERS orders from a journal written and synced before
+ * the trial, so only the reading is timed. Run with
+ *
+ *    java -jar target/benchmarks.jar JournalBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+
+   private static final String[] ITEMS = {"Pepperoni Pizza", "Garlic Bread", "Lemonade"};
+   private static final int BATCH = 100;
+   private static final int REPLAY_ORDERS = 100000;
+
+   @Param("16777216")
+   public int segmentBytes;
+
+   @Param("200")
+   public long flushMillis;
+
+   private File dir;
+   private JournalTarget journal;
+   private final AtomicInteger nextOrderID = new AtomicInteger();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      this.dir = Files.createTempDirectory("journal-bench").toFile();
+      this.journal = (JournalTarget) Class.forName("BenchmarkJournal").getDeclaredConstructor().newInstance();
+      this.journal.open(dir.getPath(), segmentBytes, flushMillis);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Exception {
+      this.journal.close();
+      delete(dir);
+   }
+
+   /**
+    * A journal of REPLAY_ORDERS orders, written and closed before replay is
+    * measured.
+    */
+   @State(Scope.Benchmark)
+   public static class Written {
+      JournalTarget journal;
+      File dir;
+
+      @Setup(Level.Trial)
+      public void setUp(JournalBenchmark bench) throws Exception {
+         this.dir = Files.createTempDirectory("journal-replay").toFile();
+         this.journal = (JournalTarget) Class.forName("BenchmarkJournal").getDeclaredConstructor().newInstance();
+         this.journal.open(dir.getPath(), bench.segmentBytes, bench.flushMillis);
+         for (int orderID = 1; orderID <= REPLAY_ORDERS; ++orderID) {
+            order(journal, orderID);
+         }
+         this.journal.sync();
+         this.journal.close();
+      }
+
+      @TearDown(Level.Trial)
+      public void tearDown() {
+         delete(dir);
+      }
+   }
+
+   private static void delete(File dir) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File f : files) {
+            f.delete();
+         }
+      }
+      dir.delete();
+   }
+
+   private void order() {
+      order(journal, nextOrderID.incrementAndGet());
+   }
+
+   private static void order(JournalTarget journal, int orderID) {
+      journal.placeOrder(orderID, "user" + (orderID % 1000), orderID % 50, ITEMS);
+      if (ThreadLocalRandom.current().nextBoolean()) {
+         journal.statusChanged(orderID, "incomplete", "in-progress");
+      }
+   }
+
+   @Benchmark
+   @Threads(4)
+   public void append() {
+      order();
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH)
+   public void appendDurable() throws Exception {
+      for (int i = 0; i < BATCH; ++i) {
+         order();
+      }
+      journal.sync();
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   @Warmup(iterations = 0)
+   @Measurement(iterations = 1)
+   public int replay(Written written) throws Exception {
+      return written.journal.replay();
+   }
+}
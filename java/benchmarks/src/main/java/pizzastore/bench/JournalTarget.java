@@ -0,0 +1,24 @@
+package pizzastore.bench;
+
+/**
+ * The event journal operations JournalBenchmark measures, implemented by
+ * the default-package BenchmarkJournal class for the same reason as
+ * Workload.
+ */
+public interface JournalTarget extends AutoCloseable {
+
+   /** Opens a journal in an empty directory. */
+   void open(String dir, int segmentBytes, long flushMillis) throws Exception;
+
+   /** Appends an order created event followed by its lines. */
+   void placeOrder(int orderID, String login, int storeID, String[] items);
+
+   /** Appends a status changed event. */
+   void statusChanged(int orderID, String oldStatus, String newStatus);
+
+   /** Waits until everything appended so far is on disk. */
+   void sync() throws Exception;
+
+   /** Replays the journal and returns the number of orders rebuilt. */
+   int replay() throws Exception;
+}
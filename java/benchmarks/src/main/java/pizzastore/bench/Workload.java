@@ -0,0 +1,51 @@
+package pizzastore.bench;
+
+import java.util.List;
+
+/**
+ * The operations the benchmarks measure. The PizzaStore classes live in the
+ * default package, which JMH benchmarks and other named packages cannot
+ * reference, so the calls go through this interface and are implemented by
+ * the default-package BenchmarkWorkload class.
+ */
+public interface Workload extends AutoCloseable {
+
+   /**
+    * Connects to the benchmark database and loads the data/*.csv fixtures
+    * into it when its tables are empty.
+    */
+   void setUp(String dbname, String port, String user, String passwd, String dataDir) throws Exception;
+
+   /** Item names present in the fixtures. */
+   List<String> itemNames();
+
+   /** Logins present in the fixtures. */
+   List<String> logins();
+
+   /** Store IDs present in the fixtures. */
+   List<Integer> storeIDs();
+
+   /** {state, city} pairs present in the fixtures. */
+   List<String[]> stateCities();
+
+   /** Looks up an item through PizzaStore.validOrder. */
+   int validOrder(String itemName) throws Exception;
+
+   /** Reads an item price straight from the database with executeQueryAndReturnResult. */
+   Object priceQuery(String itemName) throws Exception;
+
+   /** Checks a store through PizzaStore.validStore. */
+   int validStore(String storeID) throws Exception;
+
+   /** Runs the viewStores drilldown for one state and city. */
+   Object storeSearch(String state, String city) throws Exception;
+
+   /** Allocates an order ID through PizzaStore.generateOrderID. */
+   int generateOrderID(String storeID) throws Exception;
+
+   /** Builds and commits an order with the given items, one of each. */
+   int placeOrder(String login, int storeID, String[] items) throws Exception;
+
+   /** Reads the first page of a customer's order history. */
+   Object orderHistory(String login) throws Exception;
+}
@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * CsvReader on the record shapes found in data/.
+ */
+public class CsvReaderTest {
+
+   private static CsvReader reader(String text) {
+      return new CsvReader(new BufferedReader(new StringReader(text)));
+   }
+
+   @Test
+   public void splitsPlainFieldsAndTrimsSpaces() throws IOException {
+      CsvReader csv = reader("Lemonade, drinks ,2.99\n");
+      assertEquals(Arrays.asList("Lemonade", "drinks", "2.99"), csv.next());
+      assertNull(csv.next());
+   }
+
+   @Test
+   public void quotedFieldsKeepCommasAndDoubledQuotes() throws IOException {
+      CsvReader csv = reader("Cheese Pizza, \"Cheese, Bread, Tomato Sauce\", entree, 9.99, \"a \"\"classic\"\"!\"\n");
+      assertEquals(Arrays.asList("Cheese Pizza", "Cheese, Bread, Tomato Sauce", "entree", "9.99", "a \"classic\"!"),
+                   csv.next());
+   }
+
+   @Test
+   public void emptyFieldsAreKept() throws IOException {
+      assertEquals(Arrays.asList("a", "", "c", ""), reader("a,,c,\n").next());
+   }
+
+   @Test
+   public void blankLinesAreSkippedAndCounted() throws IOException {
+      CsvReader csv = reader("a,b\n\n   \nc,d\n");
+      assertEquals(Arrays.asList("a", "b"), csv.next());
+      assertEquals(Arrays.asList("c", "d"), csv.next());
+      assertEquals(4, csv.getLineNumber());
+      assertNull(csv.next());
+   }
+
+   @Test
+   public void quotedFieldMaySpanLines() throws IOException {
+      CsvReader csv = reader("1,\"first\nsecond\",3\n4,5,6\n");
+      assertEquals(Arrays.asList("1", "first\nsecond", "3"), csv.next());
+      assertEquals(2, csv.getLineNumber());
+      assertEquals(Arrays.asList("4", "5", "6"), csv.next());
+   }
+
+   @Test
+   public void unterminatedQuoteIsAnError() {
+      CsvReader csv = reader("1,\"never closed\n");
+      assertThrows(IOException.class, csv::next);
+   }
+}
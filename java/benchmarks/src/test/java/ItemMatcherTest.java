@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ItemMatcher on a small menu.
+ */
+public class ItemMatcherTest {
+
+   private static final ItemMatcher MATCHER = new ItemMatcher(Arrays.asList(
+      item("Pepperoni Pizza"), item("Pepsi"), item("Hawaiian Pizza"), item("Cheese Pizza"),
+      item("Garlic Bread"), item("Lemonade")));
+
+   private static MenuCatalog.MenuItem item(String name) {
+      return new MenuCatalog.MenuItem(name, "", "entree", 9.99, "");
+   }
+
+   private static List<String> names(List<MenuCatalog.MenuItem> items) {
+      List<String> names = new ArrayList<String>();
+      for (MenuCatalog.MenuItem item : items) {
+         names.add(item.name);
+      }
+      return names;
+   }
+
+   @Test
+   public void normalizeTrimsLowerCasesAndCollapsesSpaces() {
+      assertEquals("pepperoni pizza", ItemMatcher.normalize("  Pepperoni \t  PIZZA "));
+   }
+
+   @Test
+   public void exactNameMatchesIgnoringCaseAndSpaces() {
+      assertEquals("Pepperoni Pizza", MATCHER.match("  pepperoni   PIZZA").item.name);
+      assertTrue(MATCHER.match("lemonade").suggestions.isEmpty());
+   }
+
+   @Test
+   public void uniquePrefixResolvesToTheItem() {
+      assertEquals("Hawaiian Pizza", MATCHER.match("haw").item.name);
+   }
+
+   @Test
+   public void shortPrefixIsOnlySuggested() {
+      ItemMatcher.Match match = MATCHER.match("h");
+      assertNull(match.item);
+      assertEquals(Arrays.asList("Hawaiian Pizza"), names(match.suggestions));
+   }
+
+   @Test
+   public void ambiguousPrefixSuggestsShortestFirst() {
+      ItemMatcher.Match match = MATCHER.match("pep");
+      assertNull(match.item);
+      assertEquals(Arrays.asList("Pepsi", "Pepperoni Pizza"), names(match.suggestions));
+   }
+
+   @Test
+   public void typoSuggestsTheClosestItem() {
+      ItemMatcher.Match match = MATCHER.match("peperoni pizza");
+      assertNull(match.item);
+      assertEquals("Pepperoni Pizza", match.suggestions.get(0).name);
+      assertTrue(match.suggestions.size() <= 5);
+   }
+
+   @Test
+   public void unrelatedInputSuggestsNothing() {
+      ItemMatcher.Match match = MATCHER.match("xyzzy");
+      assertNull(match.item);
+      assertTrue(match.suggestions.isEmpty());
+   }
+
+   @Test
+   public void blankInputMatchesNothing() {
+      assertNull(MATCHER.match("   ").item);
+      assertTrue(MATCHER.match(null).suggestions.isEmpty());
+   }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * LatencyHistogram counts, percentiles and bucket precision.
+ */
+public class LatencyHistogramTest {
+
+   @Test
+   public void emptyHistogramReportsZero() {
+      LatencyHistogram h = new LatencyHistogram();
+      assertEquals(0, h.getCount());
+      assertEquals(0.0, h.getMean());
+      assertEquals(0, h.getValueAtPercentile(99));
+   }
+
+   @Test
+   public void smallValuesAreExact() {
+      LatencyHistogram h = new LatencyHistogram();
+      for (long v = 1; v <= 10; ++v) {
+         h.record(v);
+      }
+      assertEquals(10, h.getCount());
+      assertEquals(55, h.getSum());
+      assertEquals(5.5, h.getMean());
+      assertEquals(10, h.getMax());
+      assertEquals(5, h.getValueAtPercentile(50));
+      assertEquals(9, h.getValueAtPercentile(90));
+      assertEquals(10, h.getValueAtPercentile(100));
+   }
+
+   @Test
+   public void negativeValuesCountAsZero() {
+      LatencyHistogram h = new LatencyHistogram();
+      h.record(-5);
+      assertEquals(1, h.getCount());
+      assertEquals(0, h.getMax());
+      assertEquals(0, h.getValueAtPercentile(50));
+   }
+
+   @Test
+   public void largeValuesStayWithinBucketPrecision() {
+      long[] values = { 1000L, 123456L, 7654321L, 2000000000L, Long.MAX_VALUE / 4 };
+      for (long v : values) {
+         LatencyHistogram h = new LatencyHistogram();
+         h.record(v);
+         h.record(v * 2);
+         // the lower value is reported as its bucket's upper bound, at most 1/16 above it
+         long reported = h.getValueAtPercentile(50);
+         assertTrue(reported >= v && reported <= v + v / 16, v + " -> " + reported);
+         assertEquals(v * 2, h.getValueAtPercentile(100));
+      }
+   }
+
+   @Test
+   public void percentileNeverExceedsMax() {
+      LatencyHistogram h = new LatencyHistogram();
+      h.record(1000003);
+      assertEquals(1000003, h.getValueAtPercentile(100));
+   }
+
+   @Test
+   public void bucketsAreVisitedInOrderAndAddUp() {
+      LatencyHistogram h = new LatencyHistogram();
+      for (int i = 0; i < 1000; ++i) {
+         h.record(i * 997L);
+      }
+      List<Long> bounds = new ArrayList<Long>();
+      long[] total = { 0 };
+      h.forEachBucket((upper, count) -> {
+         bounds.add(upper);
+         total[0] += count;
+      });
+      assertEquals(1000, total[0]);
+      for (int i = 1; i < bounds.size(); ++i) {
+         assertTrue(bounds.get(i - 1) < bounds.get(i));
+      }
+   }
+}
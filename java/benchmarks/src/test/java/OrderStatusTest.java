@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The order life cycle; only the checks made before the database is
+ * touched are covered.
+ */
+public class OrderStatusTest {
+
+   @Test
+   public void statusesFollowTheLifeCycle() {
+      assertEquals(OrderStatus.IN_PROGRESS, OrderStatus.INCOMPLETE.next());
+      assertEquals(OrderStatus.OUT_FOR_DELIVERY, OrderStatus.IN_PROGRESS.next());
+      assertEquals(OrderStatus.COMPLETE, OrderStatus.OUT_FOR_DELIVERY.next());
+      assertNull(OrderStatus.COMPLETE.next());
+   }
+
+   @Test
+   public void onlyTheNextStepIsAllowed() {
+      for (OrderStatus from : OrderStatus.values()) {
+         for (OrderStatus to : OrderStatus.values()) {
+            assertEquals(to == from.next(), from.canMoveTo(to), from + " -> " + to);
+         }
+         assertFalse(from.canMoveTo(null));
+      }
+   }
+
+   @Test
+   public void parseIgnoresCaseAndSpaces() {
+      assertEquals(OrderStatus.OUT_FOR_DELIVERY, OrderStatus.parse("  Out-For-Delivery "));
+      assertEquals(OrderStatus.COMPLETE, OrderStatus.parse("complete"));
+      assertNull(OrderStatus.parse("shipped"));
+      assertNull(OrderStatus.parse(null));
+   }
+
+   @Test
+   public void textRoundTrips() {
+      for (OrderStatus status : OrderStatus.values()) {
+         assertEquals(status, OrderStatus.parse(status.text()));
+      }
+   }
+
+   @Test
+   public void disallowedTransitionIsRejectedBeforeAnyUpdate() {
+      assertThrows(IllegalArgumentException.class,
+                   () -> OrderStatus.transition(null, 1, OrderStatus.INCOMPLETE, OrderStatus.COMPLETE));
+      assertThrows(IllegalArgumentException.class,
+                   () -> OrderStatus.transition(null, 1, OrderStatus.COMPLETE, OrderStatus.INCOMPLETE));
+      assertTrue(OrderStatus.IN_PROGRESS.canMoveTo(OrderStatus.OUT_FOR_DELIVERY));
+   }
+}
@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ResultTable over an in-memory result set that answers the JDBC calls
+ * ResultTable makes, the way the PostgreSQL driver does.
+ */
+public class ResultTableTest {
+
+   /*
+    * A result set of the given column types and rows. Values are returned
+    * as stored; getString formats numbers like the driver's text mode.
+    */
+   private static ResultSet resultSet(String[] names, int[] types, Object[][] rows) {
+      ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         ResultTableTest.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+         (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "getColumnCount": return names.length;
+               case "getColumnName":  return names[(Integer) args[0] - 1];
+               case "getColumnType":  return types[(Integer) args[0] - 1];
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+      int[] row = { -1 };
+      Object[] last = { null };
+      return (ResultSet) Proxy.newProxyInstance(
+         ResultTableTest.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+         (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "getMetaData":  return meta;
+               case "getFetchSize": return 0;
+               case "next":         return ++row[0] < rows.length;
+               case "wasNull":      return last[0] == null;
+               default:
+                  break;
+            }
+            Object value = rows[row[0]][(Integer) args[0] - 1];
+            last[0] = value;
+            switch (method.getName()) {
+               case "getInt":       return value == null ? 0 : ((Number) value).intValue();
+               case "getLong":      return value == null ? 0L : ((Number) value).longValue();
+               case "getFloat":     return value == null ? 0f : ((Number) value).floatValue();
+               case "getDouble":    return value == null ? 0.0 : ((Number) value).doubleValue();
+               case "getTimestamp": return value;
+               case "getString":    return value == null ? null : value.toString();
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+   }
+
+   private static ResultTable orders() throws SQLException {
+      Timestamp noon = Timestamp.valueOf("2024-03-01 12:00:00");
+      return ResultTable.read(resultSet(
+         new String[] { "orderID", "login", "totalPrice", "reviewScore", "orderTimestamp", "bigID", "phoneNum" },
+         new int[] { Types.INTEGER, Types.VARCHAR, Types.DOUBLE, Types.REAL, Types.TIMESTAMP, Types.BIGINT,
+                     Types.VARCHAR },
+         new Object[][] {
+            { 1, new String("alice"), 12.5, 9.99f, noon, 5000000000L, " 42 " },
+            { 2, new String("alice"), null, null, null, null, null },
+         }));
+   }
+
+   @Test
+   public void typedGettersReadEachKind() throws SQLException {
+      ResultTable t = orders();
+      assertEquals(2, t.getRowCount());
+      assertEquals(7, t.getColumnCount());
+      assertEquals(1, t.getInt(0, 0));
+      assertEquals("alice", t.getString(0, 1));
+      assertEquals(12.5, t.getDouble(0, 2));
+      assertEquals(Timestamp.valueOf("2024-03-01 12:00:00"), t.getTimestamp(0, 4));
+      assertEquals(5000000000L, t.getLong(0, 5));
+      assertEquals(5000000000L, t.getDouble(0, 5));
+      assertEquals(12, t.getInt(0, 2));
+   }
+
+   @Test
+   public void realKeepsItsDecimalValue() throws SQLException {
+      ResultTable t = orders();
+      assertEquals(9.99, t.getDouble(0, 3));
+      assertEquals("9.99", t.getString(0, 3));
+
+      // eight significant digits survive; rounding the float to seven would not
+      ResultTable wide = ResultTable.read(resultSet(new String[] { "price" }, new int[] { Types.REAL },
+                                                    new Object[][] { { 1234567.8f } }));
+      assertEquals(1234567.8, wide.getDouble(0, 0));
+   }
+
+   @Test
+   public void manyDistinctRealsKeepTheirDecimalValues() throws SQLException {
+      Object[][] rows = new Object[2000][];
+      for (int i = 0; i < rows.length; ++i) {
+         rows[i] = new Object[] { (i % 1000) / 100f };
+      }
+      ResultTable t = ResultTable.read(resultSet(new String[] { "price" }, new int[] { Types.REAL }, rows));
+      for (int i = 0; i < rows.length; ++i) {
+         assertEquals((i % 1000) / 100.0, t.getDouble(i, 0));
+      }
+   }
+
+   @Test
+   public void numericGettersParseTextColumns() throws SQLException {
+      ResultTable t = orders();
+      assertEquals(42, t.getInt(0, 6));
+      assertEquals(42L, t.getLong(0, 6));
+      assertEquals(42.0, t.getDouble(0, 6));
+   }
+
+   @Test
+   public void equalStringsAreStoredOnce() throws SQLException {
+      ResultTable t = orders();
+      assertSame(t.getString(0, 1), t.getString(1, 1));
+   }
+
+   @Test
+   public void nullsReadAsZeroOrNull() throws SQLException {
+      ResultTable t = orders();
+      for (int col = 2; col < t.getColumnCount(); ++col) {
+         assertTrue(t.isNull(1, col));
+      }
+      assertFalse(t.isNull(0, 2));
+      assertEquals(0.0, t.getDouble(1, 2));
+      assertEquals(0.0, t.getDouble(1, 3));
+      assertEquals(0L, t.getLong(1, 5));
+      assertEquals(0, t.getInt(1, 6));
+      assertNull(t.getString(1, 2));
+      assertNull(t.getString(1, 6));
+      assertNull(t.getTimestamp(1, 4));
+   }
+
+   @Test
+   public void columnsAreFoundByNameIgnoringCase() throws SQLException {
+      ResultTable t = orders();
+      assertEquals(3, t.findColumn("REVIEWSCORE"));
+      assertThrows(IllegalArgumentException.class, () -> t.findColumn("missing"));
+   }
+
+   @Test
+   public void timestampGetterRejectsOtherColumns() throws SQLException {
+      ResultTable t = orders();
+      assertThrows(IllegalStateException.class, () -> t.getTimestampMillis(0, 0));
+   }
+
+   @Test
+   public void rowsGrowPastTheInitialCapacity() throws SQLException {
+      Object[][] rows = new Object[100][];
+      for (int i = 0; i < rows.length; ++i) {
+         rows[i] = new Object[] { i, "store" + (i % 3) };
+      }
+      ResultTable t = ResultTable.read(resultSet(new String[] { "storeID", "name" },
+                                                 new int[] { Types.INTEGER, Types.VARCHAR }, rows));
+      List<Integer> ids = t.map((table, row) -> table.getInt(row, 0));
+      assertEquals(100, ids.size());
+      assertEquals(Arrays.asList(0, 1, 2), ids.subList(0, 3));
+      assertEquals(99, t.getInt(99, 0));
+      assertEquals("store0", t.getString(99, 1));
+   }
+}
@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The open-addressing map StoreAnalytics totals each partition in.
+ */
+public class StoreTotalsTest {
+
+   @Test
+   public void addsUpPerStore() {
+      StoreAnalytics.StoreTotals t = new StoreAnalytics.StoreTotals();
+      t.add(7, 1, 10.0);
+      t.add(3, 2, 5.5);
+      t.add(7, 1, 2.5);
+      assertEquals(2, t.size());
+      assertEquals(2, t.orders(7));
+      assertEquals(12.5, t.revenue(7));
+      assertEquals(2, t.orders(3));
+      assertArrayEquals(new int[] { 3, 7 }, t.storeIDs());
+   }
+
+   @Test
+   public void missingStoreReadsAsZero() {
+      StoreAnalytics.StoreTotals t = new StoreAnalytics.StoreTotals();
+      t.add(1, 1, 1.0);
+      assertEquals(0, t.orders(2));
+      assertEquals(0.0, t.revenue(2));
+   }
+
+   @Test
+   public void growsPastItsInitialCapacity() {
+      StoreAnalytics.StoreTotals t = new StoreAnalytics.StoreTotals();
+      for (int id = 0; id < 1000; ++id) {
+         t.add(id * 64, 1, id);
+      }
+      assertEquals(1000, t.size());
+      for (int id = 0; id < 1000; ++id) {
+         assertEquals(1, t.orders(id * 64));
+         assertEquals(id, t.revenue(id * 64));
+      }
+   }
+
+   @Test
+   public void negativeStoreIDsAreKeys() {
+      StoreAnalytics.StoreTotals t = new StoreAnalytics.StoreTotals();
+      t.add(-1, 3, 3.0);
+      t.add(0, 1, 1.0);
+      assertEquals(3, t.orders(-1));
+      assertArrayEquals(new int[] { -1, 0 }, t.storeIDs());
+   }
+
+   @Test
+   public void mergeAddsOverlappingStores() {
+      StoreAnalytics.StoreTotals a = new StoreAnalytics.StoreTotals();
+      a.add(1, 1, 10.0);
+      a.add(2, 2, 20.0);
+      StoreAnalytics.StoreTotals b = new StoreAnalytics.StoreTotals();
+      b.add(2, 3, 30.0);
+      b.add(4, 4, 40.0);
+      a.merge(b);
+      assertEquals(3, a.size());
+      assertEquals(5, a.orders(2));
+      assertEquals(50.0, a.revenue(2));
+      assertEquals(4, a.orders(4));
+      assertArrayEquals(new int[] { 1, 2, 4 }, a.storeIDs());
+   }
+}
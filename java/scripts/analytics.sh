@@ -0,0 +1,12 @@
+#!/bin/bash
+
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# PostgreSQL port (set manually if PGPORT is not defined)
+PGPORT=${PGPORT:-5432}
+
+# Compile the Java program
+javac -cp "$DIR/../lib/postgresql-42.7.5.jar" -d "$DIR/../classes" "$DIR/../src/"*.java
+
+# Revenue by state and store; options (-from, -to, -partitions) are passed through
+java -cp "$DIR/../classes:$DIR/../lib/postgresql-42.7.5.jar" StoreAnalytics "cs166_db" "$PGPORT" "$USER" "$@"
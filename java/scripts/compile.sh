@@ -6,7 +6,7 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 PGPORT=${PGPORT:-5432}
 
 # Compile the Java program
-javac -d "$DIR/java/classes" "$DIR/java/src/PizzaStore.java"
+javac -cp "$DIR/java/lib/postgresql-42.7.5.jar" -d "$DIR/java/classes" "$DIR/java/src/"*.java
 
 # Run the Java program
 # java -cp "$DIR/java/classes:$DIR/java/lib/pg73jdbc3.jar" PizzaStore "cs166_db" "$PGPORT" "$USER"
@@ -0,0 +1,15 @@
+#!/bin/bash
+
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# PostgreSQL port (set manually if PGPORT is not defined)
+PGPORT=${PGPORT:-5432}
+
+# Port the session server listens on (connect with: telnet localhost $LISTEN_PORT)
+LISTEN_PORT=${LISTEN_PORT:-5166}
+
+# Compile the Java program
+javac -cp "$DIR/../lib/postgresql-42.7.5.jar" -d "$DIR/../classes" "$DIR/../src/"*.java
+
+# Serve the menus to many telnet sessions from one JVM
+java -cp "$DIR/../classes:$DIR/../lib/postgresql-42.7.5.jar" SessionServer "cs166_db" "$PGPORT" "$USER" "$LISTEN_PORT"
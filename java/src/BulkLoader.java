@@ -0,0 +1,312 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class imports the CSV fixtures in data/ with the COPY protocol.
+ * Every file is parsed with CsvReader, re-encoded as COPY text and
+ * streamed to the server in fixed size chunks, so memory use does not
+ * grow with the file. Tables are loaded in parallel, each on its own
+ * pooled connection and in its own transaction, and a table only starts
+ * once the tables it references are loaded. After FoodOrder is loaded the
+ * order ID sequence is moved past the loaded orderIDs.
+ *
+ */
+public class BulkLoader {
+
+   /**
+    * One table that can be loaded from a fixture.
+    */
+   public static class Table {
+      public final String name;
+      public final String file;
+      public final String columns;
+      // column types: i(nt), d(ouble), t(imestamp) or s(tring); empty non-string fields load as NULL
+      public final String types;
+      public final List<String> dependsOn;
+
+      Table(String name, String file, String columns, String types, String... dependsOn) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+         this.dependsOn = Arrays.asList(dependsOn);
+      }
+   }//end Table
+
+   /**
+    * The outcome of loading one table.
+    */
+   public static class Result {
+      public final String table;
+      public final long rows;
+      public final long elapsedNanos;
+
+      Result(String table, long rows, long elapsedNanos) {
+         this.table = table;
+         this.rows = rows;
+         this.elapsedNanos = elapsedNanos;
+      }
+
+      public double getRowsPerSecond() {
+         return this.elapsedNanos == 0 ? 0.0 : this.rows * 1e9 / this.elapsedNanos;
+      }
+
+      public String toString() {
+         return String.format("%-14s %10d rows %9.1f ms %12.0f rows/sec", this.table, this.rows,
+                              this.elapsedNanos / 1e6, getRowsPerSecond());
+      }
+   }//end Result
+
+   // every table of the schema, in foreign key order
+   public static final List<Table> TABLES = Arrays.asList(
+      new Table("Users",        "users.csv",        "login, password, role, favoriteItems, phoneNum",                   "sssss"),
+      new Table("Store",        "store.csv",        "storeID, address, city, state, isOpen, reviewScore",               "issssd"),
+      new Table("Items",        "items.csv",        "itemName, ingredients, typeOfItem, price, description",            "sssds"),
+      new Table("FoodOrder",    "foodorder.csv",    "orderID, login, storeID, totalPrice, orderTimestamp, orderStatus", "isidts",
+                "Users", "Store"),
+      new Table("ItemsInOrder", "itemsinorder.csv", "orderID, itemName, quantity",                                      "isi",
+                "FoodOrder", "Items"));
+
+   // bytes of COPY text sent to the server per write
+   private static final int CHUNK_SIZE = 1 << 16;
+
+   private final PizzaStore _esql;
+   private final File _dataDir;
+   private final int _threads;
+
+   /**
+    * Creates a new loader.
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    * @param dataDir the directory holding the CSV fixtures
+    * @param threads the number of tables loaded at the same time
+    */
+   public BulkLoader(PizzaStore esql, File dataDir, int threads) {
+      if (threads < 1) {
+         throw new IllegalArgumentException("Invalid thread count: " + threads);
+      }
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._threads = threads;
+   }//end BulkLoader
+
+   /**
+    * Loads the given tables. Tables that are not listed are assumed to be
+    * loaded already; a table whose dependency fails is not loaded.
+    *
+    * @param names the tables to load
+    * @return the result of every table, in foreign key order
+    * @throws java.sql.SQLException when a table cannot be loaded
+    * @throws java.io.IOException when a fixture cannot be read
+    */
+   public List<Result> load(Collection<String> names) throws SQLException, IOException {
+      ExecutorService executor = Executors.newFixedThreadPool(this._threads, r -> {
+         Thread t = new Thread(r, "bulk-loader");
+         t.setDaemon(true);
+         return t;
+      });
+      Map<String, CompletableFuture<Result>> futures = new LinkedHashMap<String, CompletableFuture<Result>>();
+      try {
+         for (final Table table : TABLES) {
+            if (!names.contains(table.name)) {
+               continue;
+            }
+            List<CompletableFuture<Result>> deps = new ArrayList<CompletableFuture<Result>>();
+            for (String dep : table.dependsOn) {
+               if (futures.containsKey(dep)) {
+                  deps.add(futures.get(dep));
+               }
+            }
+            futures.put(table.name, CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0]))
+               .thenApplyAsync(v -> {
+                  try {
+                     Result result = loadTable(table);
+                     if (table.name.equals("FoodOrder")) {
+                        // orders placed from now on must not reuse the loaded IDs
+                        this._esql.getOrderIdAllocator().skipPastTable();
+                     }
+                     return result;
+                  } catch (SQLException | IOException e) {
+                     throw new CompletionException(e);
+                  }
+               }, executor));
+         }
+
+         List<Result> results = new ArrayList<Result>();
+         for (CompletableFuture<Result> future : futures.values()) {
+            try {
+               results.add(future.join());
+            } catch (CompletionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof SQLException) {
+                  throw (SQLException) cause;
+               } else if (cause instanceof IOException) {
+                  throw (IOException) cause;
+               }
+               throw e;
+            }
+         }
+         return results;
+      } finally {
+         executor.shutdownNow();
+      }
+   }//end load
+
+   /*
+    * Streams one fixture into its table in a single transaction.
+    */
+   private Result loadTable(Table table) throws SQLException, IOException {
+      long start = System.nanoTime();
+      ConnectionPool pool = this._esql.getPool();
+      Connection conn = null;
+      CsvReader csv = new CsvReader(new BufferedReader(new InputStreamReader(
+         new FileInputStream(new File(this._dataDir, table.file)), StandardCharsets.UTF_8)));
+      long rows = 0;
+      try {
+         conn = pool.borrow();
+         conn.setAutoCommit(false);
+         CopyManager copyApi = conn.unwrap(PGConnection.class).getCopyAPI();
+         CopyIn copy = copyApi.copyIn("COPY " + table.name + " (" + table.columns + ") FROM STDIN;");
+         try {
+            StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 1024);
+            csv.next(); // header
+            List<String> record;
+            while ((record = csv.next()) != null) {
+               if (record.size() != table.types.length()) {
+                  throw new IOException(table.file + ":" + csv.getLineNumber() + ": expected " +
+                                        table.types.length() + " fields, found " + record.size());
+               }
+               encode(record, table.types, chunk);
+               ++rows;
+               if (chunk.length() >= CHUNK_SIZE) {
+                  write(copy, chunk);
+               }
+            }
+            write(copy, chunk);
+            copy.endCopy();
+         } finally {
+            if (copy.isActive()) {
+               copy.cancelCopy();
+            }
+         }
+         conn.commit();
+         QueryMetrics.record("bulkLoad." + table.name, start, rows);
+         return new Result(table.name, rows, System.nanoTime() - start);
+      } catch (SQLException e) {
+         QueryMetrics.error("bulkLoad." + table.name, start);
+         throw e;
+      } finally {
+         csv.close();
+         // release() rolls back anything left uncommitted and restores autocommit
+         pool.release(conn);
+      }
+   }//end loadTable
+
+   private static void write(CopyIn copy, StringBuilder chunk) throws SQLException {
+      if (chunk.length() > 0) {
+         byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+         copy.writeToCopy(bytes, 0, bytes.length);
+         chunk.setLength(0);
+      }
+   }
+
+   /*
+    * Appends one record as a line of COPY text: tab separated, with
+    * backslash, tab and line breaks escaped and \N for NULL.
+    */
+   private static void encode(List<String> record, String types, StringBuilder out) {
+      for (int i = 0; i < record.size(); ++i) {
+         if (i > 0) {
+            out.append('\t');
+         }
+         String value = record.get(i);
+         if (value.isEmpty() && types.charAt(i) != 's') {
+            out.append("\\N");
+            continue;
+         }
+         for (int j = 0; j < value.length(); ++j) {
+            char c = value.charAt(j);
+            switch (c) {
+               case '\\': out.append("\\\\"); break;
+               case '\t': out.append("\\t"); break;
+               case '\n': out.append("\\n"); break;
+               case '\r': out.append("\\r"); break;
+               default:   out.append(c); break;
+            }
+         }
+      }
+      out.append('\n');
+   }//end encode
+
+   /**
+    * Loads the fixtures from the command line.
+    *
+    * @param args dbname, port, user, then optional -data dir, -threads N,
+    *        -truncate and table names
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> [-data dir] [-threads N] [-truncate] [table ...]");
+         return;
+      }
+      String dataDir = "data";
+      int threads = 3;
+      boolean truncate = false;
+      List<String> names = new ArrayList<String>();
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "-data":     dataDir = args[++i]; break;
+            case "-threads":  threads = Integer.parseInt(args[++i]); break;
+            case "-truncate": truncate = true; break;
+            default:          names.add(args[i]); break;
+         }
+      }
+      if (names.isEmpty()) {
+         for (Table table : TABLES) {
+            names.add(table.name);
+         }
+      }
+
+      Class.forName("org.postgresql.Driver");
+      // one connection per loading thread
+      if (System.getProperty("pizzastore.pool.max") == null) {
+         System.setProperty("pizzastore.pool.max", String.valueOf(Math.max(threads, 1)));
+      }
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         if (truncate) {
+            esql.executeUpdate("TRUNCATE " + String.join(", ", names) + " CASCADE;");
+         }
+         long start = System.nanoTime();
+         long rows = 0;
+         for (Result result : new BulkLoader(esql, new File(dataDir), threads).load(names)) {
+            System.out.println(result);
+            rows += result.rows;
+         }
+         long elapsed = System.nanoTime() - start;
+         System.out.println(new Result("total", rows, elapsed));
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end BulkLoader
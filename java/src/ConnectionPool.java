@@ -0,0 +1,425 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections that
+ * the PizzaStore query helpers borrow from and hand back after every call.
+ * A connection is only validated when it has sat idle for longer than
+ * pizzastore.pool.validateAfterMs, so a busy pool does not pay a round
+ * trip per borrow. A background thread closes idle connections above
+ * minSize once they exceed the idle timeout, even when nothing is released.
+ *
+ */
+public class ConnectionPool {
+
+   // connection settings used to open new physical connections
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // pool sizing and timing knobs
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _borrowTimeoutMillis;
+   private final long _idleTimeoutMillis;
+   private final long _validateAfterMillis;
+   private final int _validationTimeoutSecs;
+   private final int _statementCacheSize;
+
+   // prepared statement cache for every open connection
+   private final Map<Connection, StatementCache> _caches = new IdentityHashMap<Connection, StatementCache>();
+
+   // idle connections, most recently returned first
+   private final Deque<PooledEntry> _idle = new ArrayDeque<PooledEntry>();
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = _lock.newCondition();
+
+   // number of physical connections currently open (idle + active)
+   private int _total = 0;
+   private int _active = 0;
+   private boolean _closed = false;
+
+   // closes connections that stay idle for too long
+   private final ScheduledExecutorService _evictor;
+
+   // metrics
+   private final AtomicLong _borrowCount = new AtomicLong();
+   private final AtomicLong _waitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitNanos = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _evicted = new AtomicLong();
+   private final AtomicLong _invalidated = new AtomicLong();
+
+   // an idle connection together with the time it was handed back
+   private static class PooledEntry {
+      final Connection conn;
+      long lastUsed;
+
+      PooledEntry(Connection conn) {
+         this.conn = conn;
+         this.lastUsed = System.currentTimeMillis();
+      }
+   }//end PooledEntry
+
+   /**
+    * Creates a new pool and opens the minimum number of connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize upper bound on open connections
+    * @param borrowTimeoutMillis how long borrow() waits for a free connection
+    * @param idleTimeoutMillis idle connections above minSize older than this are closed
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long borrowTimeoutMillis, long idleTimeoutMillis) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+         throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+      }
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._validateAfterMillis = Long.getLong("pizzastore.pool.validateAfterMs", 30000L);
+      this._validationTimeoutSecs = 2;
+      this._statementCacheSize = Integer.getInteger("pizzastore.stmt.cacheSize", 64);
+
+      for (int i = 0; i < minSize; ++i) {
+         this._idle.push(new PooledEntry(openConnection()));
+         ++this._total;
+      }
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "connection-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.scheduleWithFixedDelay(() -> {
+         List<Connection> expired;
+         this._lock.lock();
+         try {
+            expired = evictIdle();
+         } finally {
+            this._lock.unlock();
+         }
+         closeAll(expired);
+      }, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   private Connection openConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * Opens a connection outside the pool, for a session that keeps state
+    * of its own such as LISTEN. It does not count against the pool size
+    * and the caller must close it.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openDedicated() throws SQLException {
+      return openConnection();
+   }
+
+   /**
+    * Borrows a connection from the pool. Connections idle for longer than
+    * the validation threshold are validated before being handed out;
+    * broken ones are discarded and replaced.
+    *
+    * @return an open connection that must be handed back with release()
+    * @throws java.sql.SQLException when no connection is available before the borrow timeout
+    */
+   public Connection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long remaining = TimeUnit.MILLISECONDS.toNanos(this._borrowTimeoutMillis);
+      while (true) {
+         PooledEntry entry = null;
+         boolean mayOpen = false;
+         this._lock.lock();
+         try {
+            while (!this._closed && this._idle.isEmpty() && this._total >= this._maxSize) {
+               if (remaining <= 0L) {
+                  this._timeouts.incrementAndGet();
+                  throw new SQLException("Timed out after " + this._borrowTimeoutMillis +
+                                         " ms waiting for a database connection");
+               }
+               try {
+                  remaining = this._available.awaitNanos(remaining);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }
+            }
+            if (this._closed) {
+               throw new SQLException("Connection pool is closed");
+            }
+            if (!this._idle.isEmpty()) {
+               entry = this._idle.pop();
+            } else {
+               // reserve a slot so concurrent borrowers cannot exceed maxSize
+               ++this._total;
+               mayOpen = true;
+            }
+            ++this._active;
+         } finally {
+            this._lock.unlock();
+         }
+
+         Connection conn = null;
+         try {
+            if (mayOpen) {
+               conn = openConnection();
+            } else if (System.currentTimeMillis() - entry.lastUsed < this._validateAfterMillis
+                       || isValid(entry.conn)) {
+               conn = entry.conn;
+            } else {
+               this._invalidated.incrementAndGet();
+               closeQuietly(entry.conn);
+            }
+         } catch (SQLException e) {
+            discard();
+            throw e;
+         }
+
+         if (conn != null) {
+            recordWait(System.nanoTime() - start);
+            return conn;
+         }
+         // validation failed: give the slot back and try again
+         discard();
+      }
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool. Connections that were
+    * left mid-transaction are rolled back first.
+    *
+    * @param conn the connection returned by borrow()
+    */
+   public void release(Connection conn) {
+      if (conn == null) {
+         return;
+      }
+      boolean healthy = true;
+      try {
+         if (conn.isClosed()) {
+            healthy = false;
+         } else if (!conn.getAutoCommit()) {
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         healthy = false;
+      }
+
+      boolean pooled;
+      List<Connection> expired;
+      this._lock.lock();
+      try {
+         --this._active;
+         pooled = healthy && !this._closed;
+         if (pooled) {
+            this._idle.push(new PooledEntry(conn));
+         } else {
+            --this._total;
+         }
+         expired = evictIdle();
+         this._available.signal();
+      } finally {
+         this._lock.unlock();
+      }
+      // closing talks to the server, so it is done without the lock
+      if (!pooled) {
+         closeQuietly(conn);
+      }
+      closeAll(expired);
+   }//end release
+
+   // drops a reserved slot whose connection could not be used
+   private void discard() {
+      this._lock.lock();
+      try {
+         --this._active;
+         --this._total;
+         this._available.signal();
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   // takes the idle connections above minSize that have not been used recently
+   // out of the pool, or returns null if there are none; caller holds the lock
+   // and closes them once it has unlocked
+   private List<Connection> evictIdle() {
+      if (this._closed) {
+         return null;
+      }
+      List<Connection> expired = null;
+      long cutoff = System.currentTimeMillis() - this._idleTimeoutMillis;
+      Iterator<PooledEntry> it = this._idle.descendingIterator();
+      while (it.hasNext() && this._total > this._minSize) {
+         PooledEntry entry = it.next();
+         if (entry.lastUsed > cutoff) {
+            break;
+         }
+         it.remove();
+         --this._total;
+         this._evicted.incrementAndGet();
+         if (expired == null) {
+            expired = new ArrayList<Connection>();
+         }
+         expired.add(entry.conn);
+      }
+      return expired;
+   }
+
+   private void closeAll(List<Connection> conns) {
+      if (conns != null) {
+         for (Connection conn : conns) {
+            closeQuietly(conn);
+         }
+      }
+   }
+
+   private boolean isValid(Connection conn) {
+      try {
+         return conn.isValid(this._validationTimeoutSecs);
+      } catch (SQLException e) {
+         return false;
+      }
+   }
+
+   private void recordWait(long nanos) {
+      this._borrowCount.incrementAndGet();
+      this._waitNanos.addAndGet(nanos);
+      long prev;
+      do {
+         prev = this._maxWaitNanos.get();
+      } while (nanos > prev && !this._maxWaitNanos.compareAndSet(prev, nanos));
+   }
+
+   /**
+    * Returns the prepared statement cache of a borrowed connection.
+    *
+    * @param conn a connection obtained from borrow()
+    * @return the statement cache bound to that connection
+    */
+   public StatementCache statementCache(Connection conn) {
+      synchronized (this._caches) {
+         StatementCache cache = this._caches.get(conn);
+         if (cache == null) {
+            cache = new StatementCache(conn, this._statementCacheSize);
+            this._caches.put(conn, cache);
+         }
+         return cache;
+      }
+   }
+
+   private void closeQuietly(Connection conn) {
+      StatementCache cache;
+      synchronized (this._caches) {
+         cache = this._caches.remove(conn);
+      }
+      if (cache != null) {
+         cache.close();
+      }
+      try {
+         conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * @return the most physical connections the pool opens
+    */
+   public int getMaxSize() {
+      return this._maxSize;
+   }
+
+   /**
+    * @return the number of connections currently borrowed
+    */
+   public int getActiveCount() {
+      this._lock.lock();
+      try {
+         return this._active;
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of open connections waiting in the pool
+    */
+   public int getIdleCount() {
+      this._lock.lock();
+      try {
+         return this._idle.size();
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return the average time spent in borrow(), in milliseconds
+    */
+   public double getAverageWaitMillis() {
+      long count = this._borrowCount.get();
+      return count == 0 ? 0.0 : this._waitNanos.get() / (double) count / 1000000.0;
+   }
+
+   /**
+    * @return a one-line summary of the pool metrics
+    */
+   public String getStats() {
+      return String.format("pool: active=%d idle=%d max=%d borrows=%d avgWait=%.3fms maxWait=%.3fms " +
+                           "timeouts=%d evicted=%d invalid=%d",
+                           getActiveCount(), getIdleCount(), this._maxSize, this._borrowCount.get(),
+                           getAverageWaitMillis(), this._maxWaitNanos.get() / 1000000.0,
+                           this._timeouts.get(), this._evicted.get(), this._invalidated.get());
+   }
+
+   /**
+    * Closes every idle connection and refuses further borrows. Connections
+    * still borrowed are closed when they are released.
+    */
+   public void close() {
+      this._evictor.shutdown();
+      List<Connection> idle = new ArrayList<Connection>();
+      this._lock.lock();
+      try {
+         this._closed = true;
+         while (!this._idle.isEmpty()) {
+            idle.add(this._idle.pop().conn);
+            --this._total;
+         }
+         this._available.signalAll();
+      } finally {
+         this._lock.unlock();
+      }
+      closeAll(idle);
+   }//end close
+
+}//end ConnectionPool
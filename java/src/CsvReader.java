@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads the comma separated fixtures in data/ one record at a
+ * time. Fields may be wrapped in double quotes (to hold commas) and may
+ * have a space after the separator, as in
+ *
+ *    Cheese Pizza, "Cheese, Bread, Tomato Sauce", entree, 9.99, "a classic!"
+ *
+ * Surrounding spaces outside the quotes are dropped; a doubled quote inside
+ * a quoted field stands for one quote character.
+ *
+ */
+public class CsvReader implements Closeable {
+
+   private final BufferedReader _in;
+   private long _lineNumber = 0;
+
+   /**
+    * Creates a new reader over the given input.
+    *
+    * @param in the CSV text
+    */
+   public CsvReader(BufferedReader in) {
+      this._in = in;
+   }
+
+   /**
+    * Reads the next record. Blank lines are skipped.
+    *
+    * @return the fields of the record, or null at end of input
+    * @throws java.io.IOException when the input cannot be read or a quote is not closed
+    */
+   public List<String> next() throws IOException {
+      String line;
+      do {
+         line = this._in.readLine();
+         if (line == null) {
+            return null;
+         }
+         ++this._lineNumber;
+      } while (line.trim().isEmpty());
+
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      int i = 0;
+      while (true) {
+         // skip spaces before the field
+         while (i < line.length() && line.charAt(i) == ' ') {
+            ++i;
+         }
+         field.setLength(0);
+         if (i < line.length() && line.charAt(i) == '"') {
+            ++i;
+            while (true) {
+               if (i >= line.length()) {
+                  // quoted field continues on the next line
+                  String more = this._in.readLine();
+                  if (more == null) {
+                     throw new IOException("Unterminated quoted field at line " + this._lineNumber);
+                  }
+                  ++this._lineNumber;
+                  field.append('\n');
+                  line = more;
+                  i = 0;
+                  continue;
+               }
+               char c = line.charAt(i++);
+               if (c == '"') {
+                  if (i < line.length() && line.charAt(i) == '"') {
+                     field.append('"');
+                     ++i;
+                  } else {
+                     break;
+                  }
+               } else {
+                  field.append(c);
+               }
+            }
+            // drop anything between the closing quote and the separator
+            while (i < line.length() && line.charAt(i) != ',') {
+               ++i;
+            }
+            fields.add(field.toString());
+         } else {
+            int end = line.indexOf(',', i);
+            if (end < 0) {
+               end = line.length();
+            }
+            fields.add(line.substring(i, end).trim());
+            i = end;
+         }
+         if (i >= line.length()) {
+            break;
+         }
+         ++i; // the separator
+      }
+      return fields;
+   }//end next
+
+   /**
+    * @return the number of the line last read, starting at 1
+    */
+   public long getLineNumber() {
+      return this._lineNumber;
+   }
+
+   /**
+    * Closes the underlying reader.
+    */
+   public void close() throws IOException {
+      this._in.close();
+   }
+
+}//end CsvReader
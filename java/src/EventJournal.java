@@ -0,0 +1,386 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * This class appends order and menu events to a local journal. Callers
+ * only put the event on a lock-free queue; a single background thread
+ * encodes the events into memory-mapped segment files of a fixed size and
+ * starts a new segment when the current one is full. The mapped pages are
+ * forced to disk every flushMillis and on sync() and close(), so the menus
+ * never wait on the disk.
+ *
+ * Events are appended after the database change they describe has
+ * committed, so appending never throws or waits. When MAX_QUEUED events
+ * are still unwritten, or the writer has failed, the event is dropped and
+ * counted instead; the first drop is reported on the console. This keeps a
+ * slow disk from filling the heap or stalling the menus.
+ *
+ * Each record is laid out as
+ *
+ *    int length | int crc32 | byte type | long timeMillis | payload
+ *
+ * where length covers the whole record and the CRC covers everything after
+ * it. A zero length marks the end of a segment. On open the last segment is
+ * scanned and writing resumes after its last intact record. JournalReader
+ * reads the segments back.
+ *
+ */
+public class EventJournal {
+
+   public static final byte ORDER_CREATED = 1;
+   public static final byte LINE_ADDED = 2;
+   public static final byte STATUS_CHANGED = 3;
+   public static final byte MENU_ITEM_UPDATED = 4;
+
+   /**
+    * One journal event. Which fields are used depends on the type:
+    *
+    *    ORDER_CREATED      orderID, text1 = login, number = storeID, amount = total, text2 = status
+    *    LINE_ADDED         orderID, text1 = itemName, number = quantity, amount = unit price
+    *    STATUS_CHANGED     orderID, text1 = old status, text2 = new status
+    *    MENU_ITEM_UPDATED  text1 = itemName, amount = price, text2 = description
+    */
+   public static class Event {
+      public final byte type;
+      public final long timeMillis;
+      public final int orderID;
+      public final int number;
+      public final double amount;
+      public final String text1;
+      public final String text2;
+
+      public Event(byte type, long timeMillis, int orderID, int number, double amount, String text1, String text2) {
+         this.type = type;
+         this.timeMillis = timeMillis;
+         this.orderID = orderID;
+         this.number = number;
+         this.amount = amount;
+         this.text1 = text1 == null ? "" : text1;
+         this.text2 = text2 == null ? "" : text2;
+      }
+   }//end Event
+
+   static final int HEADER_BYTES = 4 + 4;
+   static final int MAX_QUEUED = 65536;
+   static final String SUFFIX = ".journal";
+
+   private final File _dir;
+   private final int _segmentBytes;
+   private final long _flushNanos;
+   private final ConcurrentLinkedQueue<Event> _queue = new ConcurrentLinkedQueue<Event>();
+   private final AtomicLong _appended = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicBoolean _dropReported = new AtomicBoolean();
+   private final Thread _writer;
+
+   // written only by the writer thread
+   private RandomAccessFile _file = null;
+   private MappedByteBuffer _segment = null;
+   private long _segmentNumber = 0;
+   private ByteBuffer _scratch = ByteBuffer.allocate(4096);
+   private final CRC32 _crc = new CRC32();
+
+   private volatile long _written = 0;
+   private volatile long _forced = 0;
+   private final AtomicLong _syncRequested = new AtomicLong();
+   private volatile boolean _sleeping = false;
+   private volatile boolean _closed = false;
+   private volatile IOException _failure = null;
+
+   /**
+    * Opens the journal in a directory, creating it if needed, and starts
+    * the writer thread.
+    *
+    * @param dir the directory holding the segment files
+    * @param segmentBytes the size of each segment file
+    * @param flushMillis how often written events are forced to disk
+    * @throws java.io.IOException when the last segment cannot be opened
+    */
+   public EventJournal(File dir, int segmentBytes, long flushMillis) throws IOException {
+      if (segmentBytes < 4096) {
+         throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+      }
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create journal directory " + dir);
+      }
+      this._dir = dir;
+      this._segmentBytes = segmentBytes;
+      this._flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+
+      long[] segments = segmentNumbers(dir);
+      if (segments.length == 0) {
+         openSegment(1);
+      } else {
+         openSegment(segments[segments.length - 1]);
+         this._segment.position(scan(this._segment));
+         // drop whatever a crash left behind the last intact record
+         for (int i = this._segment.position(); i < this._segment.limit(); ++i) {
+            this._segment.put(i, (byte) 0);
+         }
+      }
+
+      this._writer = new Thread(this::writeLoop, "event-journal-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end EventJournal
+
+   static long[] segmentNumbers(File dir) {
+      String[] names = dir.list((d, name) -> name.endsWith(SUFFIX));
+      if (names == null) {
+         return new long[0];
+      }
+      long[] numbers = new long[names.length];
+      int n = 0;
+      for (String name : names) {
+         try {
+            numbers[n++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+         } catch (NumberFormatException e) {
+            // not a segment
+         }
+      }
+      numbers = Arrays.copyOf(numbers, n);
+      Arrays.sort(numbers);
+      return numbers;
+   }//end segmentNumbers
+
+   static File segmentFile(File dir, long number) {
+      return new File(dir, String.format("%08d%s", number, SUFFIX));
+   }
+
+   /*
+    * Returns the offset just past the last intact record of a segment.
+    */
+   static int scan(ByteBuffer segment) {
+      CRC32 crc = new CRC32();
+      int pos = 0;
+      while (pos + HEADER_BYTES <= segment.limit()) {
+         int length = segment.getInt(pos);
+         if (length <= HEADER_BYTES || pos + length > segment.limit()) {
+            break;
+         }
+         crc.reset();
+         ByteBuffer body = segment.duplicate();
+         body.limit(pos + length).position(pos + HEADER_BYTES);
+         crc.update(body);
+         if ((int) crc.getValue() != segment.getInt(pos + 4)) {
+            break;
+         }
+         pos += length;
+      }
+      return pos;
+   }//end scan
+
+   private void openSegment(long number) throws IOException {
+      if (this._file != null) {
+         this._segment.force();
+         this._file.close();
+      }
+      this._file = new RandomAccessFile(segmentFile(this._dir, number), "rw");
+      this._segment = this._file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this._segmentBytes);
+      this._segmentNumber = number;
+   }//end openSegment
+
+   /*
+    * Queues an event, or drops it when the journal cannot take it.
+    */
+   private void append(Event event) {
+      if (this._closed) {
+         drop("the journal is closed");
+      } else if (this._failure != null || !this._writer.isAlive()) {
+         drop("the journal writer stopped");
+      } else if (this._appended.get() - this._written >= MAX_QUEUED) {
+         drop(MAX_QUEUED + " events are waiting to be written");
+      } else {
+         this._appended.incrementAndGet();
+         this._queue.add(event);
+         if (this._sleeping) {
+            LockSupport.unpark(this._writer);
+         }
+      }
+   }//end append
+
+   private void drop(String reason) {
+      this._dropped.incrementAndGet();
+      if (this._dropReported.compareAndSet(false, true)) {
+         SessionIO.console().println("Event journal is dropping events: " + reason);
+      }
+   }
+
+   /**
+    * Records a committed order.
+    */
+   public void orderCreated(int orderID, String login, int storeID, double total, String status) {
+      append(new Event(ORDER_CREATED, System.currentTimeMillis(), orderID, storeID, total, login, status));
+   }
+
+   /**
+    * Records one line of a committed order.
+    */
+   public void lineAdded(int orderID, String itemName, int quantity, double unitPrice) {
+      append(new Event(LINE_ADDED, System.currentTimeMillis(), orderID, quantity, unitPrice, itemName, null));
+   }
+
+   /**
+    * Records an order status transition.
+    */
+   public void statusChanged(int orderID, String oldStatus, String newStatus) {
+      append(new Event(STATUS_CHANGED, System.currentTimeMillis(), orderID, 0, 0.0, oldStatus, newStatus));
+   }
+
+   /**
+    * Records a menu item that was added or changed.
+    */
+   public void menuItemUpdated(String itemName, double price, String description) {
+      append(new Event(MENU_ITEM_UPDATED, System.currentTimeMillis(), 0, 0, price, itemName, description));
+   }
+
+   /**
+    * Waits until every event appended before the call is on disk.
+    *
+    * @throws java.io.IOException when the writer has failed
+    */
+   public void sync() throws IOException {
+      long target = this._appended.get();
+      // a concurrent sync may already have asked for more
+      this._syncRequested.accumulateAndGet(target, Math::max);
+      LockSupport.unpark(this._writer);
+      while (this._forced < target) {
+         if (this._failure != null) {
+            throw this._failure;
+         }
+         if (!this._writer.isAlive()) {
+            throw new IOException("Journal writer stopped");
+         }
+         LockSupport.parkNanos(50000L);
+      }
+   }//end sync
+
+   /**
+    * @return the number of events appended so far
+    */
+   public long getAppended() {
+      return this._appended.get();
+   }
+
+   /**
+    * @return the number of events dropped instead of appended
+    */
+   public long getDropped() {
+      return this._dropped.get();
+   }
+
+   /**
+    * @return the number of events written to the mapped segments so far
+    */
+   public long getWritten() {
+      return this._written;
+   }
+
+   /*
+    * Body of the writer thread.
+    */
+   private void writeLoop() {
+      long lastForce = System.nanoTime();
+      try {
+         while (true) {
+            Event event = this._queue.poll();
+            if (event != null) {
+               write(event);
+               ++this._written;
+               continue;
+            }
+
+            long now = System.nanoTime();
+            boolean dirty = this._forced < this._written;
+            if (dirty && (this._syncRequested.get() > this._forced || now - lastForce >= this._flushNanos || this._closed)) {
+               long written = this._written;
+               this._segment.force();
+               this._forced = written;
+               lastForce = now;
+               continue;
+            }
+            if (this._closed && this._queue.isEmpty()) {
+               break;
+            }
+
+            this._sleeping = true;
+            if (this._queue.isEmpty() && this._syncRequested.get() <= this._forced) {
+               LockSupport.parkNanos(dirty ? Math.max(1L, this._flushNanos - (now - lastForce)) : this._flushNanos);
+            }
+            this._sleeping = false;
+         }
+      } catch (IOException e) {
+         this._failure = e;
+         SessionIO.console().println("Event journal stopped: " + e.getMessage());
+      } finally {
+         try {
+            if (this._file != null) {
+               this._segment.force();
+               this._file.close();
+            }
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end writeLoop
+
+   private void write(Event event) throws IOException {
+      ByteBuffer buf = encode(event);
+      // keep room for the zero length that ends the segment
+      if (this._segment.position() + buf.remaining() + 4 > this._segment.limit()) {
+         if (buf.remaining() + 4 > this._segmentBytes) {
+            throw new IOException("Event of " + buf.remaining() + " bytes does not fit a segment");
+         }
+         openSegment(this._segmentNumber + 1);
+      }
+      this._segment.put(buf);
+   }//end write
+
+   private ByteBuffer encode(Event event) {
+      byte[] text1 = event.text1.getBytes(StandardCharsets.UTF_8);
+      byte[] text2 = event.text2.getBytes(StandardCharsets.UTF_8);
+      int length = HEADER_BYTES + 1 + 8 + 4 + 4 + 8 + 4 + text1.length + 4 + text2.length;
+      if (this._scratch.capacity() < length) {
+         this._scratch = ByteBuffer.allocate(Math.max(length, this._scratch.capacity() * 2));
+      }
+      ByteBuffer buf = this._scratch;
+      buf.clear();
+      buf.putInt(length).putInt(0);
+      buf.put(event.type).putLong(event.timeMillis);
+      buf.putInt(event.orderID).putInt(event.number).putDouble(event.amount);
+      buf.putInt(text1.length).put(text1);
+      buf.putInt(text2.length).put(text2);
+
+      this._crc.reset();
+      this._crc.update(buf.array(), HEADER_BYTES, length - HEADER_BYTES);
+      buf.putInt(4, (int) this._crc.getValue());
+      buf.flip();
+      return buf;
+   }//end encode
+
+   /**
+    * Writes everything still queued, forces it to disk and stops the writer.
+    */
+   public void close() {
+      this._closed = true;
+      LockSupport.unpark(this._writer);
+      try {
+         this._writer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+}//end EventJournal
@@ -0,0 +1,147 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class hands out unique IDs in blocks. The database sequence counts
+ * in steps of the block size, so each call to nextval() returns the first
+ * ID of a whole block, and the rest of the block is handed out from memory.
+ * The block size is read from the sequence's INCREMENT, not from the
+ * caller, so JVMs configured with different sizes still never reserve
+ * overlapping blocks; the configured size only applies when the sequence
+ * is created.
+ *
+ * IDs are taken from the current block with an atomic increment. A thread
+ * that finds the block used up reserves the next one without holding a
+ * lock, so other threads are never stuck behind its round trip, and swaps
+ * it in. When two threads refill at once, the block that loses the swap
+ * only yields its first ID; the rest of it is skipped, like the unused end
+ * of a block when a JVM exits.
+ *
+ */
+public class IdAllocator {
+
+   private final PizzaStore _esql;
+   private final String _sequence;
+   private final String _table;
+   private final String _column;
+   private final int _blockSize;
+
+   // a reserved block: the next ID to hand out and the first ID past it
+   private static class Block {
+      final AtomicLong next;
+      final long limit;
+
+      Block(long next, long limit) {
+         this.next = new AtomicLong(next);
+         this.limit = limit;
+      }
+   }//end Block
+
+   private final AtomicReference<Block> _block = new AtomicReference<Block>(new Block(0, 0));
+   private volatile boolean _initialized = false;
+   // the block size in use, read from the sequence before _initialized is set
+   private long _increment = 0;
+
+   /**
+    * Creates a new allocator for a table's integer key column.
+    *
+    * @param esql the PizzaStore used to reach the database
+    * @param sequence name of the block sequence, created on first use
+    * @param table the table whose keys are allocated
+    * @param column the key column, used to seed the sequence past existing rows
+    * @param blockSize number of IDs reserved per database round trip, if
+    *        the sequence does not exist yet
+    */
+   public IdAllocator(PizzaStore esql, String sequence, String table, String column, int blockSize) {
+      if (blockSize < 1) {
+         throw new IllegalArgumentException("Invalid block size: " + blockSize);
+      }
+      this._esql = esql;
+      this._sequence = sequence;
+      this._table = table;
+      this._column = column;
+      this._blockSize = blockSize;
+   }//end IdAllocator
+
+   /**
+    * Returns the next unused ID. Only the first call of every block touches
+    * the database.
+    *
+    * @return a unique ID
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public int next() throws SQLException {
+      Block block = this._block.get();
+      long id = block.next.getAndIncrement();
+      if (id >= block.limit) {
+         Block fresh = nextBlock();
+         id = fresh.next.getAndIncrement();
+         // when another thread swapped in a block first, this one is dropped
+         this._block.compareAndSet(block, fresh);
+      }
+      if (id > Integer.MAX_VALUE) {
+         throw new SQLException("ID space exhausted for " + this._table + "." + this._column);
+      }
+      return (int) id;
+   }//end next
+
+   private Block nextBlock() throws SQLException {
+      init();
+      QueryMetrics.tag("orderId.nextBlock");
+      long first = this._esql.getNextSeqVal(this._sequence);
+      return new Block(first, first + this._increment);
+   }
+
+   private void init() throws SQLException {
+      if (!this._initialized) {
+         synchronized (this) {
+            if (!this._initialized) {
+               createSequence();
+               QueryMetrics.tag("orderId.readIncrement");
+               this._increment = this._esql.executeQueryAndReturnTable(
+                  "SELECT seqincrement FROM pg_sequence WHERE seqrelid = ?::regclass;", this._sequence).getLong(0, 0);
+               this._initialized = true;
+            }
+         }
+      }
+   }//end init
+
+   /*
+    * Creates the sequence if it does not exist yet, starting just above the
+    * keys already in the table. The table is only scanned when the sequence
+    * is missing.
+    */
+   private void createSequence() throws SQLException {
+      QueryMetrics.tag("orderId.createSequence");
+      ResultTable exists = this._esql.executeQueryAndReturnTable(
+         "SELECT 1 FROM pg_class WHERE relkind = 'S' AND relname = lower(?);", this._sequence);
+      if (exists.getRowCount() > 0) {
+         return;
+      }
+      ResultTable max = this._esql.executeQueryAndReturnTable(
+         "SELECT COALESCE(MAX(" + this._column + "), 0) FROM " + this._table + ";");
+      long start = max.getLong(0, 0) + 1;
+      this._esql.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + this._sequence + " INCREMENT BY " +
+                               this._blockSize + " START WITH " + start + ";");
+   }//end createSequence
+
+   /**
+    * Moves the sequence past the keys now in the table, e.g. after rows
+    * were loaded with keys of their own, and drops this JVM's current
+    * block. Blocks other JVMs already hold are not affected.
+    *
+    * @throws java.sql.SQLException when the sequence cannot be moved
+    */
+   public void skipPastTable() throws SQLException {
+      init();
+      QueryMetrics.tag("orderId.skipPastTable");
+      // nextval() also keeps the sequence from moving back below a block
+      // that was already handed out
+      this._esql.executeQueryAndReturnTable(
+         "SELECT setval(?::regclass, GREATEST((SELECT COALESCE(MAX(" + this._column + "), 0) + 1 FROM " +
+            this._table + "), nextval(?::regclass)), false);", this._sequence, this._sequence);
+      this._block.set(new Block(0, 0));
+   }//end skipPastTable
+
+}//end IdAllocator
@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class matches what a customer types at the "Place your order"
+ * prompt against the item names of one menu snapshot. Names are compared
+ * after trimming, lower-casing and collapsing runs of spaces, so
+ * '  pepperoni   PIZZA' finds 'Pepperoni Pizza'. Three or more letters that
+ * start exactly one item's name resolve to that item. Otherwise the closest items
+ * are suggested: those starting with the input, found in a trie of the
+ * names, or else those sharing the most trigrams with it, which catches
+ * typos. Everything is built once per snapshot and read-only afterwards.
+ *
+ */
+public class ItemMatcher {
+
+   private static final int MAX_SUGGESTIONS = 5;
+
+   // a shorter start of a name is only suggested, never taken as the item
+   private static final int MIN_PREFIX = 3;
+
+   // the least trigram similarity (Dice coefficient) a suggestion needs
+   private static final double MIN_SIMILARITY = 0.3;
+
+   /**
+    * The outcome of a match: the item when the input names exactly one,
+    * otherwise up to five suggestions, best first.
+    */
+   public static class Match {
+      public final MenuCatalog.MenuItem item;
+      public final List<MenuCatalog.MenuItem> suggestions;
+
+      Match(MenuCatalog.MenuItem item, List<MenuCatalog.MenuItem> suggestions) {
+         this.item = item;
+         this.suggestions = suggestions;
+      }
+   }//end Match
+
+   // a trie node; children are kept in small parallel arrays
+   private static class Node {
+      char[] labels = new char[0];
+      Node[] children = new Node[0];
+      int item = -1;
+
+      Node child(char c) {
+         for (int i = 0; i < this.labels.length; ++i) {
+            if (this.labels[i] == c) {
+               return this.children[i];
+            }
+         }
+         return null;
+      }
+
+      Node addChild(char c) {
+         Node node = child(c);
+         if (node == null) {
+            int n = this.labels.length;
+            this.labels = Arrays.copyOf(this.labels, n + 1);
+            this.children = Arrays.copyOf(this.children, n + 1);
+            this.labels[n] = c;
+            this.children[n] = node = new Node();
+         }
+         return node;
+      }
+   }//end Node
+
+   private final MenuCatalog.MenuItem[] _items;
+   private final int[] _trigramCounts;
+   private final Node _root = new Node();
+   private final Map<String, int[]> _trigrams = new HashMap<String, int[]>();
+
+   /**
+    * @param items the items of one menu snapshot
+    */
+   public ItemMatcher(List<MenuCatalog.MenuItem> items) {
+      this._items = items.toArray(new MenuCatalog.MenuItem[0]);
+      this._trigramCounts = new int[this._items.length];
+
+      Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+      for (int i = 0; i < this._items.length; ++i) {
+         String key = normalize(this._items[i].name);
+         Node node = this._root;
+         for (int j = 0; j < key.length(); ++j) {
+            node = node.addChild(key.charAt(j));
+         }
+         node.item = i;
+
+         List<String> grams = trigrams(key);
+         this._trigramCounts[i] = grams.size();
+         for (String gram : grams) {
+            List<Integer> list = postings.get(gram);
+            if (list == null) {
+               list = new ArrayList<Integer>();
+               postings.put(gram, list);
+            }
+            list.add(i);
+         }
+      }
+      for (Map.Entry<String, List<Integer>> e : postings.entrySet()) {
+         int[] ids = new int[e.getValue().size()];
+         for (int i = 0; i < ids.length; ++i) {
+            ids[i] = e.getValue().get(i);
+         }
+         this._trigrams.put(e.getKey(), ids);
+      }
+   }//end ItemMatcher
+
+   /**
+    * @return the text trimmed, lower-cased and with runs of spaces collapsed
+    */
+   static String normalize(String text) {
+      return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+   }
+
+   // the distinct trigrams of a padded key, so short names still have some
+   private static List<String> trigrams(String key) {
+      String padded = "  " + key + " ";
+      List<String> grams = new ArrayList<String>();
+      for (int i = 0; i + 3 <= padded.length(); ++i) {
+         String gram = padded.substring(i, i + 3);
+         if (!grams.contains(gram)) {
+            grams.add(gram);
+         }
+      }
+      return grams;
+   }
+
+   /**
+    * Matches what the customer typed.
+    *
+    * @param input the text typed
+    * @return the match; neither item nor suggestions are set for blank input
+    */
+   public Match match(String input) {
+      if (input == null || input.trim().isEmpty()) {
+         return new Match(null, Collections.<MenuCatalog.MenuItem>emptyList());
+      }
+      String key = normalize(input);
+
+      Node node = this._root;
+      for (int i = 0; i < key.length() && node != null; ++i) {
+         node = node.child(key.charAt(i));
+      }
+      if (node != null) {
+         if (node.item >= 0) {
+            return new Match(this._items[node.item], Collections.<MenuCatalog.MenuItem>emptyList());
+         }
+         List<MenuCatalog.MenuItem> completions = new ArrayList<MenuCatalog.MenuItem>();
+         collect(node, completions);
+         if (completions.size() == 1 && key.length() >= MIN_PREFIX) {
+            return new Match(completions.get(0), Collections.<MenuCatalog.MenuItem>emptyList());
+         }
+         return new Match(null, completions.subList(0, Math.min(MAX_SUGGESTIONS, completions.size())));
+      }
+      return new Match(null, similar(key));
+   }//end match
+
+   // the items under a trie node, shortest names first
+   private void collect(Node node, List<MenuCatalog.MenuItem> out) {
+      List<Node> level = Collections.singletonList(node);
+      while (!level.isEmpty() && out.size() <= MAX_SUGGESTIONS) {
+         List<Node> next = new ArrayList<Node>();
+         for (Node n : level) {
+            if (n.item >= 0) {
+               out.add(this._items[n.item]);
+            }
+            next.addAll(Arrays.asList(n.children));
+         }
+         level = next;
+      }
+   }//end collect
+
+   // the items sharing the most trigrams with the key, best first
+   private List<MenuCatalog.MenuItem> similar(String key) {
+      List<String> grams = trigrams(key);
+      int[] shared = new int[this._items.length];
+      for (String gram : grams) {
+         int[] ids = this._trigrams.get(gram);
+         if (ids != null) {
+            for (int id : ids) {
+               ++shared[id];
+            }
+         }
+      }
+
+      // insertion into a short best-first list; scores are kept alongside
+      int[] best = new int[MAX_SUGGESTIONS];
+      double[] scores = new double[MAX_SUGGESTIONS];
+      int found = 0;
+      for (int i = 0; i < shared.length; ++i) {
+         if (shared[i] == 0) {
+            continue;
+         }
+         double score = 2.0 * shared[i] / (grams.size() + this._trigramCounts[i]);
+         if (score < MIN_SIMILARITY || (found == MAX_SUGGESTIONS && score <= scores[found - 1])) {
+            continue;
+         }
+         int pos = Math.min(found, MAX_SUGGESTIONS - 1);
+         while (pos > 0 && scores[pos - 1] < score) {
+            best[pos] = best[pos - 1];
+            scores[pos] = scores[pos - 1];
+            --pos;
+         }
+         best[pos] = i;
+         scores[pos] = score;
+         found = Math.min(found + 1, MAX_SUGGESTIONS);
+      }
+
+      List<MenuCatalog.MenuItem> result = new ArrayList<MenuCatalog.MenuItem>(found);
+      for (int i = 0; i < found; ++i) {
+         result.add(this._items[best[i]]);
+      }
+      return result;
+   }//end similar
+
+}//end ItemMatcher
@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class reads the segments written by EventJournal back in order and
+ * rebuilds the state of every order from its events, including the full
+ * history of status changes that FoodOrder does not keep. Reading stops at
+ * the end of each segment or at the first record that is torn or fails its
+ * CRC, which can only be the tail of the last segment after a crash.
+ *
+ * Usage: java JournalReader <journal dir> [orderID]
+ *
+ */
+public class JournalReader {
+
+   /**
+    * Receives the events of a journal, oldest first.
+    */
+   public interface Visitor {
+      void visit(EventJournal.Event event);
+   }
+
+   /**
+    * The state of one order rebuilt from the journal.
+    */
+   public static class OrderState {
+      public final int orderID;
+      public String login = "";
+      public int storeID;
+      public double totalPrice;
+      public String orderStatus = "";
+      public long createdMillis;
+      public final Map<String, Integer> lines = new LinkedHashMap<String, Integer>();
+      public final List<String> history = new ArrayList<String>();
+
+      OrderState(int orderID) {
+         this.orderID = orderID;
+      }
+   }//end OrderState
+
+   private final File _dir;
+
+   /**
+    * @param dir the directory holding the segment files
+    */
+   public JournalReader(File dir) {
+      this._dir = dir;
+   }
+
+   /**
+    * Passes every intact event of every segment to a visitor.
+    *
+    * @param visitor receives the events
+    * @return the number of events read
+    * @throws java.io.IOException when a segment cannot be read
+    */
+   public long replay(Visitor visitor) throws IOException {
+      long count = 0;
+      for (long number : EventJournal.segmentNumbers(this._dir)) {
+         try (RandomAccessFile file = new RandomAccessFile(EventJournal.segmentFile(this._dir, number), "r")) {
+            ByteBuffer segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            int end = EventJournal.scan(segment);
+            int pos = 0;
+            while (pos < end) {
+               int length = segment.getInt(pos);
+               visitor.visit(decode(segment, pos));
+               pos += length;
+               ++count;
+            }
+         }
+      }
+      return count;
+   }//end replay
+
+   private static EventJournal.Event decode(ByteBuffer segment, int pos) {
+      ByteBuffer buf = segment.duplicate();
+      buf.position(pos + EventJournal.HEADER_BYTES);
+      byte type = buf.get();
+      long timeMillis = buf.getLong();
+      int orderID = buf.getInt();
+      int number = buf.getInt();
+      double amount = buf.getDouble();
+      String text1 = readString(buf);
+      String text2 = readString(buf);
+      return new EventJournal.Event(type, timeMillis, orderID, number, amount, text1, text2);
+   }//end decode
+
+   private static String readString(ByteBuffer buf) {
+      byte[] bytes = new byte[buf.getInt()];
+      buf.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Rebuilds the orders recorded in the journal.
+    *
+    * @return the orders by orderID
+    * @throws java.io.IOException when a segment cannot be read
+    */
+   public Map<Integer, OrderState> rebuildOrders() throws IOException {
+      Map<Integer, OrderState> orders = new TreeMap<Integer, OrderState>();
+      replay(event -> {
+         if (event.type == EventJournal.MENU_ITEM_UPDATED) {
+            return;
+         }
+         OrderState order = orders.get(event.orderID);
+         if (order == null) {
+            order = new OrderState(event.orderID);
+            orders.put(event.orderID, order);
+         }
+         String time = new Timestamp(event.timeMillis).toString();
+         switch (event.type) {
+            case EventJournal.ORDER_CREATED:
+               order.login = event.text1;
+               order.storeID = event.number;
+               order.totalPrice = event.amount;
+               order.orderStatus = event.text2;
+               order.createdMillis = event.timeMillis;
+               order.history.add(time + "  created at store " + event.number + " as " + event.text2);
+               break;
+            case EventJournal.LINE_ADDED:
+               order.lines.merge(event.text1, event.number, Integer::sum);
+               break;
+            case EventJournal.STATUS_CHANGED:
+               order.orderStatus = event.text2;
+               order.history.add(time + "  " + event.text1 + " -> " + event.text2);
+               break;
+            default:
+               break;
+         }
+      });
+      return orders;
+   }//end rebuildOrders
+
+   /**
+    * Prints a summary of a journal, or the rebuilt state of one order.
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("Usage: java JournalReader <journal dir> [orderID]");
+         return;
+      }
+      JournalReader reader = new JournalReader(new File(args[0]));
+
+      long start = System.nanoTime();
+      Map<Integer, OrderState> orders = reader.rebuildOrders();
+      long elapsed = System.nanoTime() - start;
+
+      if (args.length > 1) {
+         OrderState order = orders.get(Integer.parseInt(args[1]));
+         if (order == null) {
+            System.out.println("Order " + args[1] + " is not in the journal.");
+            return;
+         }
+         System.out.println("Order " + order.orderID + " by " + order.login + " at store " + order.storeID +
+                            String.format(", total %.2f, status %s", order.totalPrice, order.orderStatus));
+         for (Map.Entry<String, Integer> line : order.lines.entrySet()) {
+            System.out.println("   " + line.getValue() + " x " + line.getKey());
+         }
+         for (String step : order.history) {
+            System.out.println("   " + step);
+         }
+         return;
+      }
+
+      Map<String, Integer> byStatus = new TreeMap<String, Integer>();
+      for (OrderState order : orders.values()) {
+         byStatus.merge(order.orderStatus.isEmpty() ? "(created before the journal)" : order.orderStatus, 1, Integer::sum);
+      }
+      System.out.println(orders.size() + " orders rebuilt in " + (elapsed / 1000000) + " ms");
+      for (Map.Entry<String, Integer> e : byStatus.entrySet()) {
+         System.out.println("   " + e.getKey() + ": " + e.getValue());
+      }
+   }//end main
+
+}//end JournalReader
@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies into log-linear buckets, in the style of an
+ * HDR histogram: every power of two is split into 16 sub-buckets, so any
+ * recorded value is reported within about 6% of its true value. Recording
+ * is lock-free and does not allocate.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   // values below SUB_COUNT get their own bucket; above, the top SUB_BITS+1 bits pick one
+   private static int indexOf(long value) {
+      if (value < SUB_COUNT) {
+         return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+      return (shift + 1) * SUB_COUNT + sub;
+   }
+
+   // the largest value that maps to the bucket
+   private static long highestValueOf(int index) {
+      if (index < SUB_COUNT) {
+         return index;
+      }
+      int shift = index / SUB_COUNT - 1;
+      long sub = index % SUB_COUNT;
+      return (((SUB_COUNT | sub) + 1) << shift) - 1;
+   }
+
+   /**
+    * Records one value.
+    *
+    * @param value the latency in nanoseconds (negative values count as 0)
+    */
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      this._counts.incrementAndGet(indexOf(value));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(value);
+      long prev;
+      while (value > (prev = this._max.get()) && !this._max.compareAndSet(prev, value)) {
+         // retry
+      }
+   }//end record
+
+   /**
+    * @return the number of recorded values
+    */
+   public long getCount() {
+      return this._count.get();
+   }
+
+   /**
+    * @return the largest recorded value
+    */
+   public long getMax() {
+      return this._max.get();
+   }
+
+   /**
+    * @return the sum of all recorded values
+    */
+   public long getSum() {
+      return this._sum.get();
+   }
+
+   /**
+    * @return the mean of the recorded values
+    */
+   public double getMean() {
+      long count = this._count.get();
+      return count == 0 ? 0.0 : this._sum.get() / (double) count;
+   }
+
+   /**
+    * @param percentile a value between 0 and 100
+    * @return the value at the given percentile, rounded up to its bucket
+    */
+   public long getValueAtPercentile(double percentile) {
+      long count = this._count.get();
+      if (count == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank) {
+            return Math.min(highestValueOf(i), this._max.get());
+         }
+      }
+      return this._max.get();
+   }//end getValueAtPercentile
+
+   /**
+    * Calls the visitor once for every non-empty bucket, in ascending order.
+    *
+    * @param visitor receives the bucket's upper bound and its count
+    */
+   public void forEachBucket(BucketVisitor visitor) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long c = this._counts.get(i);
+         if (c != 0) {
+            visitor.visit(highestValueOf(i), c);
+         }
+      }
+   }
+
+   /**
+    * Receives the buckets of a histogram.
+    */
+   public interface BucketVisitor {
+      void visit(long upperBound, long count);
+   }
+
+   /**
+    * @return a one-line summary in milliseconds, assuming values are nanoseconds
+    */
+   public String summary() {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                           getCount(), getMean() / 1e6,
+                           getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+                           getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6,
+                           getMax() / 1e6);
+   }
+
+}//end LatencyHistogram
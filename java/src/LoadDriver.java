@@ -0,0 +1,387 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class replays scripted sessions against the PizzaStore menu
+ * handlers from many concurrent virtual users, without a keyboard. Each
+ * step of a script names a handler and the lines typed into it; the lines
+ * are fed through SessionIO so the handlers run unchanged. New sessions
+ * arrive at a fixed rate and at most a given number run at once.
+ *
+ * A session that has to wait for a free virtual user starts late, and the
+ * per-step times do not show that wait. Each session therefore also
+ * records its time from its scheduled start to its end, and how late it
+ * started, so a saturated system is not reported as a fast one.
+ *
+ * A script file has one step per line:
+ *
+ *    # operation   input lines, separated by '|'
+ *    login         ${login} | ${password}
+ *    viewMenu      6 | 8
+ *    placeOrder    ${store} | 1 | ${item} | 2 | 2 | yes
+ *
+ * ${login} and ${password} come from data/users.csv, ${item} from
+ * data/items.csv and ${store} is a random store ID, drawn again for every
+ * occurrence; ${newLogin} is a fresh login for createUser. Usage:
+ *
+ *    java LoadDriver dbname port user [-users N] [-rate sessions/sec]
+ *                    [-duration secs] [-script file] [-data dir] [-seed]
+ *
+ */
+public class LoadDriver {
+
+   // the session replayed when no script file is given
+   private static final String DEFAULT_SCRIPT =
+      "createUser       ${newLogin} | pw | customer | Fries | 555-0100\n" +
+      "login            ${login} | ${password}\n" +
+      "viewMenu         1 | 6 | 8\n" +
+      "placeOrder       ${store} | 1 | ${item} | 2 | 1 | ${item} | 1 | 2 | yes\n" +
+      "viewAllOrders    q\n" +
+      "viewRecentOrders\n" +
+      "updateOrderStatus 2\n";
+
+   private static final Pattern VARIABLE = Pattern.compile("\\$\\{(\\w+)\\}");
+
+   /*
+    * Thrown when a handler asks for more input than the step provides. The
+    * handlers' input loops only retry on bad input, so it ends the step.
+    */
+   private static class ScriptExhausted extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      ScriptExhausted() {
+         super("script input exhausted", null, false, false);
+      }
+   }
+
+   // a reader over the step's input that aborts the step once it runs dry
+   private static class ScriptReader extends BufferedReader {
+      ScriptReader(Reader in) {
+         super(in);
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         String line = super.readLine();
+         if (line == null) {
+            throw new ScriptExhausted();
+         }
+         return line;
+      }
+   }//end ScriptReader
+
+   // counts the bytes a handler writes to System.err, i.e. its error messages
+   private static class CountingSink extends OutputStream {
+      long bytes = 0;
+
+      @Override
+      public void write(int b) {
+         ++bytes;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+         bytes += len;
+      }
+   }//end CountingSink
+
+   private static final OutputStream DISCARD = OutputStream.nullOutputStream();
+
+   private static class Step {
+      final String operation;
+      final String input;
+
+      Step(String operation, String input) {
+         this.operation = operation;
+         this.input = input;
+      }
+   }//end Step
+
+   // per-operation statistics
+   private static class OpStats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }
+
+   private final PizzaStore _esql;
+   private final List<Step> _script;
+   private final List<String[]> _users = new ArrayList<String[]>();
+   private final List<String> _items = new ArrayList<String>();
+   private final List<List<String>> _itemRows;
+   private final List<String> _stores = new ArrayList<String>();
+   private final Map<String, OpStats> _stats = new ConcurrentHashMap<String, OpStats>();
+   private final LatencyHistogram _sessionLatency = new LatencyHistogram();
+   private final LatencyHistogram _startDelay = new LatencyHistogram();
+   private final AtomicInteger _newLogins = new AtomicInteger();
+   private final String _runID = Long.toString(System.currentTimeMillis() % 100000L, 36);
+
+   /**
+    * Creates a new driver.
+    *
+    * @param esql the PizzaStore the handlers run against
+    * @param script the session script
+    * @param dataDir the directory holding users.csv and items.csv
+    * @throws java.io.IOException when a fixture cannot be read
+    * @throws java.sql.SQLException when the store IDs cannot be read
+    */
+   public LoadDriver(PizzaStore esql, String script, String dataDir) throws IOException, java.sql.SQLException {
+      this._esql = esql;
+      this._script = parseScript(script);
+      for (List<String> row : readCsv(new File(dataDir, "users.csv"))) {
+         this._users.add(new String[] { row.get(0), row.get(1), row.get(2), row.get(3), row.get(4) });
+      }
+      this._itemRows = readCsv(new File(dataDir, "items.csv"));
+      for (List<String> row : this._itemRows) {
+         this._items.add(row.get(0));
+      }
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT storeID FROM Store;")) {
+         this._stores.add(row.get(0).trim());
+      }
+      if (this._users.isEmpty() || this._items.isEmpty() || this._stores.isEmpty()) {
+         throw new IllegalStateException("Need at least one user, item and store to generate sessions");
+      }
+   }//end LoadDriver
+
+   private static List<List<String>> readCsv(File file) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      CsvReader csv = new CsvReader(new BufferedReader(new FileReader(file)));
+      try {
+         csv.next(); // header
+         List<String> record;
+         while ((record = csv.next()) != null) {
+            rows.add(record);
+         }
+      } finally {
+         csv.close();
+      }
+      return rows;
+   }
+
+   private static List<Step> parseScript(String script) {
+      List<Step> steps = new ArrayList<Step>();
+      for (String line : script.split("\n")) {
+         line = line.trim();
+         if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+         }
+         String[] parts = line.split("\\s+", 2);
+         StringBuilder input = new StringBuilder();
+         if (parts.length > 1) {
+            for (String field : parts[1].split("\\|")) {
+               input.append(field.trim()).append('\n');
+            }
+         }
+         steps.add(new Step(parts[0], input.toString()));
+      }
+      return steps;
+   }//end parseScript
+
+   /**
+    * Inserts the users and items of the fixtures that are not in the
+    * database yet.
+    *
+    * @throws java.sql.SQLException when a row cannot be inserted
+    */
+   public void seed() throws java.sql.SQLException {
+      for (String[] user : this._users) {
+         this._esql.executeUpdate("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) " +
+                                  "VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING;",
+                                  (Object[]) user);
+      }
+      for (List<String> row : this._itemRows) {
+         this._esql.executeUpdate("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) " +
+                                  "VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING;",
+                                  row.get(0), row.get(1), row.get(2), Double.parseDouble(row.get(3)), row.get(4));
+      }
+      this._esql.getMenuCatalog().invalidate();
+   }//end seed
+
+   // fills in the variables of a step's input, each occurrence separately
+   private String expand(String input, String[] user, Random random) {
+      Matcher m = VARIABLE.matcher(input);
+      StringBuilder out = new StringBuilder();
+      while (m.find()) {
+         String value;
+         switch (m.group(1)) {
+            case "login":    value = user[0]; break;
+            case "password": value = user[1]; break;
+            case "item":     value = this._items.get(random.nextInt(this._items.size())); break;
+            case "store":    value = this._stores.get(random.nextInt(this._stores.size())); break;
+            case "newLogin": value = "load" + this._runID + "_" + this._newLogins.incrementAndGet(); break;
+            default:         value = m.group(); break;
+         }
+         m.appendReplacement(out, Matcher.quoteReplacement(value));
+      }
+      m.appendTail(out);
+      return out.toString();
+   }//end expand
+
+   /*
+    * Replays the script once as one virtual user.
+    *
+    * @param scheduled the System.nanoTime() at which the session was due
+    */
+   private void runSession(long scheduled) {
+      this._startDelay.record(Math.max(0L, System.nanoTime() - scheduled));
+      Random random = ThreadLocalRandom.current();
+      String[] user = this._users.get(random.nextInt(this._users.size()));
+      String login = user[0];
+      for (Step step : this._script) {
+         String input = expand(step.input, user, random);
+
+         CountingSink err = new CountingSink();
+         SessionIO.bind(new ScriptReader(new StringReader(input)), DISCARD, err);
+         boolean failed = false;
+         long start = System.nanoTime();
+         try {
+            invoke(step.operation, login);
+         } catch (ScriptExhausted e) {
+            failed = true;
+         } catch (RuntimeException e) {
+            failed = true;
+         } finally {
+            SessionIO.unbind();
+         }
+         OpStats stats = this._stats.computeIfAbsent(step.operation, k -> new OpStats());
+         stats.latency.record(System.nanoTime() - start);
+         if (failed || err.bytes > 0) {
+            stats.errors.incrementAndGet();
+         }
+      }
+      // executor threads are reused, so the next session must log in again
+      UserSession.end();
+      this._sessionLatency.record(System.nanoTime() - scheduled);
+   }//end runSession
+
+   private void invoke(String operation, String login) {
+      switch (operation) {
+         case "createUser":        PizzaStore.CreateUser(this._esql); break;
+         case "login":             PizzaStore.LogIn(this._esql); break;
+         case "viewProfile":       PizzaStore.viewProfile(this._esql, login); break;
+         case "updateProfile":     PizzaStore.updateProfile(this._esql, login); break;
+         case "viewMenu":          PizzaStore.viewMenu(this._esql); break;
+         case "placeOrder":        PizzaStore.placeOrder(this._esql, login); break;
+         case "viewAllOrders":     PizzaStore.viewAllOrders(this._esql, login); break;
+         case "viewRecentOrders":  PizzaStore.viewRecentOrders(this._esql, login); break;
+         case "viewOrderInfo":     PizzaStore.viewOrderInfo(this._esql, login); break;
+         case "viewStores":        PizzaStore.viewStores(this._esql); break;
+         case "updateOrderStatus": PizzaStore.updateOrderStatus(this._esql, login); break;
+         case "updateMenu":        PizzaStore.updateMenu(this._esql, login); break;
+         default: throw new IllegalArgumentException("Unknown operation: " + operation);
+      }
+   }//end invoke
+
+   /**
+    * Starts sessions at the given rate until the duration has passed, then
+    * waits for the running sessions to finish.
+    *
+    * @param users the maximum number of concurrent virtual users
+    * @param rate new sessions per second
+    * @param durationSecs how long new sessions keep arriving
+    */
+   public void run(int users, double rate, int durationSecs) throws InterruptedException {
+      SessionIO.install();
+      ExecutorService pool = Executors.newFixedThreadPool(users);
+      long interval = (long) (1e9 / rate);
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(durationSecs);
+      long next = start;
+      int sessions = 0;
+      while (next < end) {
+         long wait = next - System.nanoTime();
+         if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+         }
+         final long scheduled = next;
+         pool.execute(() -> runSession(scheduled));
+         ++sessions;
+         next += interval;
+      }
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.HOURS);
+      double secs = (System.nanoTime() - start) / 1e9;
+      report(sessions, secs);
+   }//end run
+
+   private void report(int sessions, double secs) {
+      System.out.printf("%d session(s) in %.1f s (%.1f sessions/sec)%n", sessions, secs, sessions / secs);
+      // measured from the scheduled start, so waiting for a virtual user counts
+      System.out.printf("%-18s %s%n", "(session)", this._sessionLatency.summary());
+      System.out.printf("%-18s %s%n", "(start delay)", this._startDelay.summary());
+      for (Map.Entry<String, OpStats> e : new TreeMap<String, OpStats>(this._stats).entrySet()) {
+         System.out.printf("%-18s errors=%d %s%n", e.getKey(), e.getValue().errors.get(),
+                           e.getValue().latency.summary());
+      }
+   }
+
+   /**
+    * The load driver entry point.
+    *
+    * @param args dbname port user followed by the options listed above
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoadDriver <dbname> <port> <user> [-users N] [-rate sessions/sec] " +
+                            "[-duration secs] [-script file] [-data dir] [-seed]");
+         return;
+      }
+      int users = 16;
+      double rate = 10.0;
+      int duration = 30;
+      String scriptFile = null;
+      String dataDir = "data";
+      boolean seed = false;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "-users":    users = Integer.parseInt(args[++i]); break;
+            case "-rate":     rate = Double.parseDouble(args[++i]); break;
+            case "-duration": duration = Integer.parseInt(args[++i]); break;
+            case "-script":   scriptFile = args[++i]; break;
+            case "-data":     dataDir = args[++i]; break;
+            case "-seed":     seed = true; break;
+            default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+         }
+      }
+
+      String script = DEFAULT_SCRIPT;
+      if (scriptFile != null) {
+         script = new String(java.nio.file.Files.readAllBytes(new File(scriptFile).toPath()));
+      }
+
+      Class.forName("org.postgresql.Driver");
+      // size the pool for the virtual users unless told otherwise
+      if (System.getProperty("pizzastore.pool.max") == null) {
+         System.setProperty("pizzastore.pool.max", String.valueOf(users));
+      }
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         LoadDriver driver = new LoadDriver(esql, script, dataDir);
+         if (seed) {
+            driver.seed();
+         }
+         driver.run(users, rate, duration);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end LoadDriver
@@ -0,0 +1,340 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class defines a read-through, in-memory copy of the Items table.
+ * The whole menu is loaded in one query and kept as an immutable snapshot
+ * with a price index over all items and over each item type, which serves
+ * the sorted listings and price range searches. updateMenu replaces the
+ * snapshot with a freshly loaded one after changing an item, and it is
+ * reloaded after a TTL to pick up changes made by other JVMs.
+ *
+ */
+public class MenuCatalog {
+
+   /**
+    * A single row of the Items table with typed fields. Text fields are
+    * trimmed, so ' entree' in the fixtures becomes 'entree'.
+    */
+   public static class MenuItem {
+      public final String name;
+      public final String ingredients;
+      public final String type;
+      public final double price;
+      public final String description;
+
+      public MenuItem(String name, String ingredients, String type, double price, String description) {
+         this.name = name;
+         this.ingredients = ingredients;
+         this.type = type;
+         this.price = price;
+         this.description = description;
+      }
+   }//end MenuItem
+
+   /*
+    * The items of one partition sorted by price, with the prices in a
+    * parallel double[]. A price range is found with two binary searches
+    * and returned as a view of the sorted array, so a query costs
+    * O(log n) plus the rows the caller reads, and nothing is boxed.
+    */
+   private static class PriceIndex {
+      final double[] prices;
+      final List<MenuItem> ascending;
+      final List<MenuItem> descending;
+
+      PriceIndex(List<MenuItem> items) {
+         int n = items.size();
+         double[] keys = new double[n];
+         int[] order = new int[n];
+         for (int i = 0; i < n; ++i) {
+            keys[i] = items.get(i).price;
+            order[i] = i;
+         }
+         sort(order, new int[n], keys, 0, n);
+
+         this.prices = new double[n];
+         MenuItem[] asc = new MenuItem[n];
+         MenuItem[] desc = new MenuItem[n];
+         for (int i = 0; i < n; ++i) {
+            this.prices[i] = keys[order[i]];
+            asc[i] = items.get(order[i]);
+            desc[n - 1 - i] = asc[i];
+         }
+         this.ascending = Collections.unmodifiableList(Arrays.asList(asc));
+         this.descending = Collections.unmodifiableList(Arrays.asList(desc));
+      }
+
+      // stable merge sort of item ordinals by price; equal prices keep table order
+      private static void sort(int[] order, int[] tmp, double[] keys, int from, int to) {
+         if (to - from < 2) {
+            return;
+         }
+         int mid = (from + to) >>> 1;
+         sort(order, tmp, keys, from, mid);
+         sort(order, tmp, keys, mid, to);
+         int i = from, j = mid, k = from;
+         while (i < mid && j < to) {
+            tmp[k++] = keys[order[j]] < keys[order[i]] ? order[j++] : order[i++];
+         }
+         while (i < mid) {
+            tmp[k++] = order[i++];
+         }
+         while (j < to) {
+            tmp[k++] = order[j++];
+         }
+         System.arraycopy(tmp, from, order, from, to - from);
+      }
+
+      // index of the first price >= price
+      int lowerBound(double price) {
+         int lo = 0, hi = this.prices.length;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.prices[mid] < price) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+         return lo;
+      }
+
+      // the items priced in [min, max), cheapest first
+      List<MenuItem> range(double min, double max) {
+         int from = lowerBound(min);
+         int to = Math.max(from, lowerBound(max));
+         return this.ascending.subList(from, to);
+      }
+   }//end PriceIndex
+
+   // an immutable view of the menu at one point in time; loadedAt is taken
+   // before the Items table is read
+   private static class Snapshot {
+      final long loadedAt;
+      final Map<String, MenuItem> byName;
+      final List<MenuItem> all;
+      final PriceIndex prices;
+      final Map<String, List<MenuItem>> byType;
+      final Map<String, PriceIndex> pricesByType;
+      final ItemMatcher matcher;
+
+      Snapshot(long loadedAt, List<MenuItem> items) {
+         this.loadedAt = loadedAt;
+         Map<String, MenuItem> names = new HashMap<String, MenuItem>();
+         Map<String, List<MenuItem>> types = new HashMap<String, List<MenuItem>>();
+         for (MenuItem item : items) {
+            names.put(item.name, item);
+            List<MenuItem> ofType = types.get(item.type);
+            if (ofType == null) {
+               ofType = new ArrayList<MenuItem>();
+               types.put(item.type, ofType);
+            }
+            ofType.add(item);
+         }
+         Map<String, PriceIndex> typePrices = new HashMap<String, PriceIndex>();
+         for (Map.Entry<String, List<MenuItem>> e : types.entrySet()) {
+            typePrices.put(e.getKey(), new PriceIndex(e.getValue()));
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+         }
+
+         this.byName = names;
+         this.byType = types;
+         this.pricesByType = typePrices;
+         this.all = Collections.unmodifiableList(new ArrayList<MenuItem>(items));
+         this.prices = new PriceIndex(items);
+         this.matcher = new ItemMatcher(items);
+      }
+   }//end Snapshot
+
+   private final PizzaStore _esql;
+   private final long _ttlMillis;
+   private volatile Snapshot _snapshot = null;
+
+   /**
+    * Creates a new, empty catalog. Nothing is loaded until the first lookup.
+    *
+    * @param esql the PizzaStore used to load the Items table
+    * @param ttlMillis how long a loaded snapshot is trusted
+    */
+   public MenuCatalog(PizzaStore esql, long ttlMillis) {
+      this._esql = esql;
+      this._ttlMillis = ttlMillis;
+   }//end MenuCatalog
+
+   /*
+    * Returns the current snapshot, loading it when missing or expired.
+    */
+   private Snapshot snapshot() throws SQLException {
+      Snapshot snap = this._snapshot;
+      if (snap != null && System.currentTimeMillis() - snap.loadedAt < this._ttlMillis) {
+         return snap;
+      }
+      synchronized (this) {
+         snap = this._snapshot;
+         if (snap == null || System.currentTimeMillis() - snap.loadedAt >= this._ttlMillis) {
+            snap = load();
+            this._snapshot = snap;
+         }
+         return snap;
+      }
+   }//end snapshot
+
+   private Snapshot load() throws SQLException {
+      long loadedAt = System.currentTimeMillis();
+      QueryMetrics.tag("menuCatalog.load");
+      ResultTable rows = this._esql.executeQueryAndReturnTable(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;");
+      return new Snapshot(loadedAt, rows.map(MenuCatalog::toItem));
+   }//end load
+
+   private static MenuItem toItem(ResultTable rows, int row) {
+      return new MenuItem(trim(rows.getString(row, 0)), trim(rows.getString(row, 1)), trim(rows.getString(row, 2)),
+                          rows.getDouble(row, 3), trim(rows.getString(row, 4)));
+   }
+
+   private static String trim(String s) {
+      return s == null ? "" : s.trim();
+   }
+
+   /**
+    * Drops the loaded snapshot so the next lookup reads the Items table.
+    */
+   public void invalidate() {
+      this._snapshot = null;
+   }
+
+   /**
+    * Loads the Items table into a new snapshot and swaps it in. Readers
+    * use the old snapshot until the new one is complete. The load runs
+    * outside the lock, so a snapshot read later that was installed in the
+    * meantime is kept rather than replaced by this one.
+    *
+    * @throws java.sql.SQLException when the menu cannot be loaded; the old snapshot is kept then
+    */
+   public void refresh() throws SQLException {
+      Snapshot snap = load();
+      synchronized (this) {
+         Snapshot current = this._snapshot;
+         if (current == null || snap.loadedAt >= current.loadedAt) {
+            this._snapshot = snap;
+         }
+      }
+   }
+
+   /**
+    * @param itemName the item name, surrounding spaces are ignored
+    * @return the item, or null when it is not on the menu
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public MenuItem get(String itemName) throws SQLException {
+      return itemName == null ? null : snapshot().byName.get(itemName.trim());
+   }
+
+   /**
+    * Finds the item a customer meant, allowing for case, spacing, an
+    * unfinished name or a typo.
+    *
+    * @param input the text typed
+    * @return the item, or suggestions when the input is not one item
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public ItemMatcher.Match match(String input) throws SQLException {
+      return snapshot().matcher.match(input);
+   }
+
+   /**
+    * @return every item, in table order
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> all() throws SQLException {
+      return snapshot().all;
+   }
+
+   /**
+    * @return every item, cheapest first
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> byPriceAscending() throws SQLException {
+      return snapshot().prices.ascending;
+   }
+
+   /**
+    * @return every item, most expensive first
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> byPriceDescending() throws SQLException {
+      return snapshot().prices.descending;
+   }
+
+   /**
+    * @param type the item type, e.g. sides, drinks or entree
+    * @return every item of the type, in table order
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> byType(String type) throws SQLException {
+      List<MenuItem> items = snapshot().byType.get(type.trim());
+      return items == null ? Collections.<MenuItem>emptyList() : items;
+   }
+
+   /**
+    * @param price the exclusive upper bound
+    * @return every item cheaper than price, cheapest first
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> underPrice(double price) throws SQLException {
+      return snapshot().prices.range(Double.NEGATIVE_INFINITY, price);
+   }
+
+   /**
+    * @param min the inclusive lower bound
+    * @param max the exclusive upper bound
+    * @return every item priced from min up to max, cheapest first
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> priceRange(double min, double max) throws SQLException {
+      return snapshot().prices.range(min, max);
+   }
+
+   /**
+    * @param type the item type, e.g. sides, drinks or entree
+    * @param min the inclusive lower bound
+    * @param max the exclusive upper bound
+    * @return every item of the type priced from min up to max, cheapest first
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> priceRange(String type, double min, double max) throws SQLException {
+      PriceIndex index = snapshot().pricesByType.get(type.trim());
+      return index == null ? Collections.<MenuItem>emptyList() : index.range(min, max);
+   }
+
+   /**
+    * Prints items to standard out in the same layout as
+    * PizzaStore.executeQueryAndPrintResult.
+    *
+    * @param items the items to print
+    * @return the number of rows printed
+    */
+   public static int printItems(List<MenuItem> items) {
+      if (items.isEmpty()) {
+         return 0;
+      }
+      StringBuilder out = new StringBuilder();
+      out.append("itemname\tingredients\ttypeofitem\tprice\tdescription\t\n");
+      for (MenuItem item : items) {
+         out.append(item.name).append('\t')
+            .append(item.ingredients).append('\t')
+            .append(item.type).append('\t')
+            .append(String.format("%.2f", item.price)).append('\t')
+            .append(item.description).append("\t\n");
+      }
+      System.out.print(out);
+      return items.size();
+   }//end printItems
+
+}//end MenuCatalog
@@ -0,0 +1,368 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the orders that are not complete yet in memory, ordered
+ * by orderID, so drivers and managers can list them without scanning
+ * FoodOrder. Orders enter the feed when placeOrder commits them and leave
+ * it when their status becomes complete.
+ *
+ * Every change is announced on the pizzastore_orders channel with
+ * NOTIFY. A background thread LISTENs on a dedicated connection and
+ * re-reads the orders that other JVMs changed, so all JVMs see new orders
+ * within moments. LISTEN takes effect before the feed is loaded on first
+ * use, so nothing committed in between is missed; the feed is loaded again
+ * only when the listener reconnects, since notifications sent while it was
+ * not listening are lost.
+ *
+ * Database reads never run under the feed's lock, so publishing a change
+ * never waits on a query. A load remembers the changes applied while it
+ * runs and replays them onto its result before swapping it in, so a change
+ * that arrives during a load is not overwritten by it.
+ *
+ */
+public class OpenOrderFeed {
+
+   /**
+    * One order that is not complete.
+    */
+   public static class OpenOrder {
+      public final int orderID;
+      public final String login;
+      public final int storeID;
+      public final String totalPrice;
+      public final String orderStatus;
+
+      public OpenOrder(int orderID, String login, int storeID, String totalPrice, String orderStatus) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.totalPrice = totalPrice;
+         this.orderStatus = orderStatus;
+      }
+   }//end OpenOrder
+
+   private static final String CHANNEL = "pizzastore_orders";
+   private static final String SELECT =
+      "SELECT orderID, login, storeID, totalPrice, orderStatus FROM FoodOrder WHERE orderStatus <> 'complete'";
+
+   // tells this JVM's own notifications apart from those of other JVMs
+   private static final String SOURCE = UUID.randomUUID().toString();
+
+   private final PizzaStore _esql;
+   private volatile ConcurrentSkipListMap<Integer, OpenOrder> _orders = new ConcurrentSkipListMap<Integer, OpenOrder>();
+   private volatile boolean _loaded = false;
+   // the changes applied while a load runs, null otherwise; a completed
+   // order maps to null
+   private HashMap<Integer, OpenOrder> _duringLoad = null;
+   private final Object _startLock = new Object();
+   private volatile boolean _closed = false;
+   private Thread _listener = null;
+
+   // bumped on every change; waitForChange() sleeps on it
+   private long _version = 0;
+
+   /**
+    * Creates a new, empty feed. Nothing is loaded until the first list().
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    */
+   public OpenOrderFeed(PizzaStore esql) {
+      this._esql = esql;
+   }//end OpenOrderFeed
+
+   /**
+    * @return the open orders, ordered by orderID
+    * @throws java.sql.SQLException when the feed cannot be loaded
+    */
+   public List<OpenOrder> list() throws SQLException {
+      ensureStarted();
+      return new ArrayList<OpenOrder>(this._orders.values());
+   }
+
+   /**
+    * @param orderID the order to look up
+    * @return the order if it is open, otherwise null
+    * @throws java.sql.SQLException when the feed cannot be loaded
+    */
+   public OpenOrder get(int orderID) throws SQLException {
+      ensureStarted();
+      return this._orders.get(orderID);
+   }
+
+   /**
+    * Waits until the feed changes or the timeout expires.
+    *
+    * @param timeoutMillis the longest time to wait
+    * @return true if the feed changed
+    * @throws java.lang.InterruptedException when the wait is interrupted
+    */
+   public synchronized boolean waitForChange(long timeoutMillis) throws InterruptedException {
+      long version = this._version;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (this._version == version) {
+         long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+         if (remaining <= 0) {
+            return false;
+         }
+         wait(remaining);
+      }
+      return true;
+   }//end waitForChange
+
+   private synchronized void changed() {
+      ++this._version;
+      notifyAll();
+   }
+
+   /**
+    * Announces a change to an order to the other JVMs. The announcement is
+    * sent on the given connection, so when that connection is inside a
+    * transaction it is only delivered if the transaction commits.
+    *
+    * @param conn the connection that wrote the change
+    * @param orderID the order that changed
+    * @throws java.sql.SQLException when the announcement cannot be sent
+    */
+   public void announce(Connection conn, int orderID) throws SQLException {
+      long start = System.nanoTime();
+      try {
+         PreparedStatement notify = this._esql.getPool().statementCache(conn).prepare("SELECT pg_notify(?, ?);");
+         notify.setString(1, CHANNEL);
+         notify.setString(2, SOURCE + ":" + orderID);
+         notify.executeQuery().close();
+         QueryMetrics.record("openOrders.announce", start, 1);
+      } catch (SQLException e) {
+         QueryMetrics.error("openOrders.announce", start);
+         throw e;
+      }
+   }//end announce
+
+   /**
+    * Applies a committed change made by this JVM: the order is kept while
+    * it is open and dropped once it is complete.
+    *
+    * @param order the order's new state
+    */
+   public synchronized void update(OpenOrder order) {
+      apply(order.orderID, order.orderStatus.trim().equalsIgnoreCase("complete") ? null : order);
+   }
+
+   // keeps an open order or drops a completed one (null); caller holds the lock
+   private void apply(int orderID, OpenOrder order) {
+      if (this._duringLoad != null) {
+         this._duringLoad.put(orderID, order);
+      }
+      if (!this._loaded) {
+         return; // the first load reads it from the table
+      }
+      if (order == null) {
+         this._orders.remove(orderID);
+      } else {
+         this._orders.put(orderID, order);
+      }
+      changed();
+   }//end apply
+
+   /**
+    * Announces and applies a status change that is already committed.
+    *
+    * @param orderID the order that changed
+    * @param status the order's new status
+    * @throws java.sql.SQLException when the change cannot be announced
+    */
+   public void statusChanged(int orderID, String status) throws SQLException {
+      ConnectionPool pool = this._esql.getPool();
+      Connection conn = null;
+      try {
+         conn = pool.borrow();
+         announce(conn, orderID);
+      } finally {
+         pool.release(conn);
+      }
+      if (!this._loaded) {
+         return;
+      }
+      OpenOrder old = this._orders.get(orderID);
+      if (old == null && !status.trim().equalsIgnoreCase("complete")) {
+         refresh(orderID); // reopened, the feed does not have the rest of the row
+      } else if (old != null) {
+         update(new OpenOrder(orderID, old.login, old.storeID, old.totalPrice, status));
+      }
+   }//end statusChanged
+
+   private void ensureStarted() throws SQLException {
+      if (this._loaded || this._closed) {
+         return;
+      }
+      synchronized (this._startLock) {
+         if (this._loaded || this._closed) {
+            return;
+         }
+         Connection conn = subscribe();
+         try {
+            reload();
+         } catch (SQLException e) {
+            conn.close();
+            throw e;
+         }
+         Thread listener = new Thread(() -> listen(conn), "open-order-listener");
+         listener.setDaemon(true);
+         synchronized (this) {
+            this._listener = listener;
+         }
+         listener.start();
+      }
+   }//end ensureStarted
+
+   // opens the listener's connection; notifications queue up from here on
+   private Connection subscribe() throws SQLException {
+      Connection conn = this._esql.getPool().openDedicated();
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.execute("LISTEN " + CHANNEL + ";");
+         stmt.close();
+      } catch (SQLException e) {
+         conn.close();
+         throw e;
+      }
+      return conn;
+   }//end subscribe
+
+   /*
+    * Reads every open order and swaps the result in. Only one load runs at
+    * a time: the first one under _startLock, later ones on the listener.
+    */
+   private void reload() throws SQLException {
+      synchronized (this) {
+         this._duringLoad = new HashMap<Integer, OpenOrder>();
+      }
+      ConcurrentSkipListMap<Integer, OpenOrder> orders = new ConcurrentSkipListMap<Integer, OpenOrder>();
+      try {
+         QueryMetrics.tag("openOrders.load");
+         ResultTable rows = this._esql.executeQueryAndReturnTable(SELECT + " ORDER BY orderID;");
+         for (OpenOrder order : rows.map(OpenOrderFeed::toOrder)) {
+            orders.put(order.orderID, order);
+         }
+      } catch (SQLException e) {
+         synchronized (this) {
+            this._duringLoad = null;
+         }
+         throw e;
+      }
+      synchronized (this) {
+         for (Map.Entry<Integer, OpenOrder> e : this._duringLoad.entrySet()) {
+            if (e.getValue() == null) {
+               orders.remove(e.getKey());
+            } else {
+               orders.put(e.getKey(), e.getValue());
+            }
+         }
+         this._duringLoad = null;
+         this._orders = orders;
+         this._loaded = true;
+         changed();
+      }
+   }//end reload
+
+   private static OpenOrder toOrder(ResultTable rows, int row) {
+      String status = rows.getString(row, 4);
+      return new OpenOrder(rows.getInt(row, 0), rows.getString(row, 1).trim(), rows.getInt(row, 2),
+                           String.format("%.2f", rows.getDouble(row, 3)), status == null ? "" : status.trim());
+   }
+
+   /**
+    * Re-reads one order from FoodOrder, e.g. one another JVM changed.
+    *
+    * @param orderID the order to read
+    * @throws java.sql.SQLException when the order cannot be read
+    */
+   public void refresh(int orderID) throws SQLException {
+      QueryMetrics.tag("openOrders.refresh");
+      ResultTable rows = this._esql.executeQueryAndReturnTable(SELECT + " AND orderID = ?;", orderID);
+      synchronized (this) {
+         apply(orderID, rows.getRowCount() == 0 ? null : toOrder(rows, 0));
+      }
+   }//end refresh
+
+   /*
+    * Body of the listener thread; it starts on the connection the first
+    * load subscribed with.
+    */
+   private void listen(Connection subscribed) {
+      Connection conn = subscribed;
+      while (!this._closed) {
+         try {
+            if (conn == null) {
+               conn = subscribe();
+               // catch up on what changed while not listening
+               reload();
+            }
+
+            PGConnection pg = conn.unwrap(PGConnection.class);
+            while (!this._closed) {
+               PGNotification[] notes = pg.getNotifications(1000);
+               if (notes == null) {
+                  continue;
+               }
+               for (PGNotification note : notes) {
+                  String payload = note.getParameter();
+                  int sep = payload.lastIndexOf(':');
+                  if (sep < 0 || payload.substring(0, sep).equals(SOURCE)) {
+                     continue;
+                  }
+                  refresh(Integer.parseInt(payload.substring(sep + 1)));
+               }
+            }
+         } catch (SQLException | RuntimeException e) {
+            if (!this._closed) {
+               SessionIO.console().println("Open order listener: " + e.getMessage() + "; reconnecting");
+               try {
+                  Thread.sleep(2000);
+               } catch (InterruptedException ie) {
+                  return;
+               }
+            }
+         } finally {
+            if (conn != null) {
+               try {
+                  conn.close();
+               } catch (SQLException e) {
+                  // ignored.
+               }
+               conn = null;
+            }
+         }
+      }
+   }//end listen
+
+   /**
+    * Stops the listener.
+    */
+   public void close() {
+      this._closed = true;
+      Thread listener;
+      synchronized (this) {
+         listener = this._listener;
+      }
+      if (listener != null) {
+         try {
+            listener.join(2000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }//end close
+
+}//end OpenOrderFeed
@@ -0,0 +1,186 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class accumulates the line items of an order in memory while the
+ * customer is still choosing, and writes the FoodOrder row together with
+ * all of its ItemsInOrder rows in a single transaction at checkout.
+ *
+ */
+public class OrderBuilder {
+
+   private static final String INSERT_ORDER =
+      "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+      "VALUES (?, ?, ?, ?, ?, ?);";
+   private static final String INSERT_LINE =
+      "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?);";
+
+   // a single line of the order; repeated items are merged into one line
+   private static class Line {
+      final double unitPrice;
+      int quantity;
+
+      Line(double unitPrice, int quantity) {
+         this.unitPrice = unitPrice;
+         this.quantity = quantity;
+      }
+   }//end Line
+
+   private final int _orderID;
+   private final String _login;
+   private final int _storeID;
+   private final Timestamp _timestamp;
+   private final LinkedHashMap<String, Line> _lines = new LinkedHashMap<String, Line>();
+
+   /**
+    * Creates a new, empty order.
+    *
+    * @param orderID the ID the order will be stored under
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param timestamp the time the order was started
+    */
+   public OrderBuilder(int orderID, String login, int storeID, Timestamp timestamp) {
+      this._orderID = orderID;
+      this._login = login;
+      this._storeID = storeID;
+      this._timestamp = timestamp;
+   }//end OrderBuilder
+
+   /**
+    * Adds a line to the order. Adding an item that is already in the order
+    * increases its quantity.
+    *
+    * @param itemName the menu item
+    * @param unitPrice the price of one item
+    * @param quantity how many of the item
+    */
+   public void addLine(String itemName, double unitPrice, int quantity) {
+      Line line = this._lines.get(itemName);
+      if (line == null) {
+         this._lines.put(itemName, new Line(unitPrice, quantity));
+      } else {
+         line.quantity += quantity;
+      }
+   }//end addLine
+
+   /**
+    * @return the ID the order will be stored under
+    */
+   public int getOrderID() {
+      return this._orderID;
+   }
+
+   /**
+    * @return the number of distinct items in the order
+    */
+   public int getLineCount() {
+      return this._lines.size();
+   }
+
+   /**
+    * @return the order total computed from the captured item prices
+    */
+   public double getTotalPrice() {
+      double total = 0.0;
+      for (Line line : this._lines.values()) {
+         total += line.unitPrice * line.quantity;
+      }
+      return total;
+   }
+
+   /**
+    * Prints the order lines and their cost to standard out.
+    */
+   public void printLines() {
+      System.out.println("itemName\tquantity\ttotalCost\t");
+      for (Map.Entry<String, Line> e : this._lines.entrySet()) {
+         Line line = e.getValue();
+         System.out.println(e.getKey() + "\t" + line.quantity + "\t" +
+                            String.format("%.2f", line.unitPrice * line.quantity) + "\t");
+      }
+   }//end printLines
+
+   /**
+    * Writes the order and all of its lines in one transaction. The lines
+    * are sent to the server as a single JDBC batch. Once committed, the
+    * order enters the open order feed and the event journal, and the sales
+    * rollups count it if it was committed as complete.
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    * @param status the orderStatus to store
+    * @throws java.sql.SQLException when the order cannot be written; nothing is stored in that case
+    */
+   public void commit(PizzaStore esql, String status) throws SQLException {
+      long start = System.nanoTime();
+      ConnectionPool pool = esql.getPool();
+      OpenOrderFeed feed = esql.getOpenOrderFeed();
+      Connection conn = null;
+      try {
+         conn = pool.borrow();
+         conn.setAutoCommit(false);
+         StatementCache cache = pool.statementCache(conn);
+
+         PreparedStatement order = cache.prepare(INSERT_ORDER);
+         order.setInt(1, this._orderID);
+         order.setString(2, this._login);
+         order.setInt(3, this._storeID);
+         order.setDouble(4, getTotalPrice());
+         order.setTimestamp(5, this._timestamp);
+         order.setString(6, status);
+         order.executeUpdate();
+
+         if (!this._lines.isEmpty()) {
+            PreparedStatement lines = cache.prepare(INSERT_LINE);
+            for (Map.Entry<String, Line> e : this._lines.entrySet()) {
+               lines.setInt(1, this._orderID);
+               lines.setString(2, e.getKey());
+               lines.setInt(3, e.getValue().quantity);
+               lines.addBatch();
+            }
+            try {
+               lines.executeBatch();
+            } finally {
+               lines.clearBatch();
+            }
+         }
+         // delivered to the other JVMs only if the order commits
+         if (feed != null) {
+            feed.announce(conn, this._orderID);
+         }
+         conn.commit();
+         QueryMetrics.record("placeOrder.commit", start, 1 + this._lines.size());
+      } catch (SQLException e) {
+         QueryMetrics.error("placeOrder.commit", start);
+         throw e;
+      } finally {
+         // release() rolls back anything left uncommitted and restores autocommit
+         pool.release(conn);
+      }
+
+      // the order is committed and the connection back in the pool; none of
+      // these throws or waits on the database
+      if (feed != null) {
+         feed.update(new OpenOrderFeed.OpenOrder(this._orderID, this._login, this._storeID,
+                                                 String.format("%.2f", getTotalPrice()), status));
+      }
+
+      EventJournal journal = esql.getEventJournal();
+      if (journal != null) {
+         journal.orderCreated(this._orderID, this._login, this._storeID, getTotalPrice(), status);
+         for (Map.Entry<String, Line> e : this._lines.entrySet()) {
+            journal.lineAdded(this._orderID, e.getKey(), e.getValue().quantity, e.getValue().unitPrice);
+         }
+      }
+
+      SalesRollup rollup = esql.getSalesRollup();
+      if (rollup != null && OrderStatus.parse(status) == OrderStatus.COMPLETE) {
+         rollup.orderCompleted(this._orderID);
+      }
+   }//end commit
+
+}//end OrderBuilder
@@ -0,0 +1,141 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class pages through the order history, newest order first. Pages
+ * are cut on whole orders and continue from a (orderTimestamp, orderID)
+ * keyset cursor rather than an OFFSET, so every page costs the same no
+ * matter how far back the history goes. The orders of a page are read
+ * from the FoodOrder indexes on (login, orderTimestamp DESC, orderID DESC)
+ * and (orderTimestamp DESC, orderID DESC), which SchemaMigrator creates in
+ * migration 3.
+ *
+ */
+public class OrderHistory {
+
+   /**
+    * One page of orders with their lines.
+    */
+   public static class Page {
+      // orderID, orderTimestamp, orderStatus, itemName, quantity, totalCost
+      public final List<List<String>> rows;
+      public final int orderCount;
+      public final boolean hasMore;
+
+      Page(List<List<String>> rows, int orderCount, boolean hasMore) {
+         this.rows = rows;
+         this.orderCount = orderCount;
+         this.hasMore = hasMore;
+      }
+
+      /**
+       * Prints the page to standard out in the format of
+       * executeQueryAndPrintResult.
+       */
+      public void print() {
+         System.out.println("orderid\tordertimestamp\torderstatus\titemname\tquantity\ttotalcost\t");
+         for (List<String> row : this.rows) {
+            StringBuilder line = new StringBuilder();
+            for (String value : row) {
+               line.append(value).append('\t');
+            }
+            System.out.println(line);
+         }
+      }//end print
+   }//end Page
+
+   // one more order than the page size is read to learn whether another page follows
+   private static final String PAGE =
+      "SELECT fo.orderID, fo.orderTimestamp, fo.orderStatus, iio.itemName, iio.quantity, " +
+      "(i.price * iio.quantity) AS totalCost " +
+      "FROM (SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder " +
+      "%s ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?) fo " +
+      "LEFT JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
+      "LEFT JOIN Items i ON iio.itemName = i.itemName " +
+      "ORDER BY fo.orderTimestamp DESC, fo.orderID DESC, iio.itemName;";
+
+   private static final String FIRST_ALL = String.format(PAGE, "");
+   private static final String NEXT_ALL = String.format(PAGE, "WHERE (orderTimestamp, orderID) < (?, ?)");
+   private static final String FIRST_USER = String.format(PAGE, "WHERE login = ?");
+   private static final String NEXT_USER = String.format(PAGE, "WHERE login = ? AND (orderTimestamp, orderID) < (?, ?)");
+
+   private final PizzaStore _esql;
+   private final String _login;
+   private final int _pageSize;
+
+   // the last order of the previous page; null before the first page
+   private Timestamp _lastTimestamp = null;
+   private int _lastOrderID = 0;
+   private boolean _done = false;
+
+   /**
+    * Creates a new cursor positioned before the newest order.
+    *
+    * @param esql the PizzaStore used to run the queries
+    * @param login the customer whose orders are listed, or null for every order
+    * @param pageSize the number of orders per page
+    */
+   public OrderHistory(PizzaStore esql, String login, int pageSize) {
+      if (pageSize < 1) {
+         throw new IllegalArgumentException("Invalid page size: " + pageSize);
+      }
+      this._esql = esql;
+      this._login = login;
+      this._pageSize = pageSize;
+   }//end OrderHistory
+
+   /**
+    * @return true when next() has returned the oldest order
+    */
+   public boolean isDone() {
+      return this._done;
+   }
+
+   /**
+    * Reads the next page of orders.
+    *
+    * @return the page; empty once the history is exhausted
+    * @throws java.sql.SQLException when the page cannot be read
+    */
+   public Page next() throws SQLException {
+      if (this._done) {
+         return new Page(new ArrayList<List<String>>(), 0, false);
+      }
+      int limit = this._pageSize + 1;
+      List<List<String>> rows;
+      if (this._login == null) {
+         rows = this._lastTimestamp == null
+            ? this._esql.executeQueryAndReturnResult(FIRST_ALL, limit)
+            : this._esql.executeQueryAndReturnResult(NEXT_ALL, this._lastTimestamp, this._lastOrderID, limit);
+      } else {
+         rows = this._lastTimestamp == null
+            ? this._esql.executeQueryAndReturnResult(FIRST_USER, this._login, limit)
+            : this._esql.executeQueryAndReturnResult(NEXT_USER, this._login, this._lastTimestamp,
+                                                     this._lastOrderID, limit);
+      }
+
+      // keep the first pageSize orders; rows of one order are adjacent
+      List<List<String>> page = new ArrayList<List<String>>();
+      int orders = 0;
+      String current = null;
+      boolean hasMore = false;
+      for (List<String> row : rows) {
+         if (!row.get(0).equals(current)) {
+            if (orders == this._pageSize) {
+               hasMore = true;
+               break;
+            }
+            current = row.get(0);
+            ++orders;
+            this._lastOrderID = Integer.parseInt(current.trim());
+            this._lastTimestamp = Timestamp.valueOf(row.get(1).trim());
+         }
+         page.add(row);
+      }
+      this._done = !hasMore;
+      return new Page(page, orders, hasMore);
+   }//end next
+
+}//end OrderHistory
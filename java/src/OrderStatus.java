@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This enum defines the life cycle of an order:
+ *
+ *    incomplete -> in-progress -> out-for-delivery -> complete
+ *
+ * An order only moves one step forward at a time and complete is final.
+ * A transition is a single conditional UPDATE that names the status the
+ * caller saw, so when two drivers change the same order at once exactly
+ * one of them wins and the other is told, instead of silently
+ * overwriting the first change.
+ *
+ */
+public enum OrderStatus {
+
+   INCOMPLETE("incomplete"),
+   IN_PROGRESS("in-progress"),
+   OUT_FOR_DELIVERY("out-for-delivery"),
+   COMPLETE("complete");
+
+   static final String TRANSITION =
+      "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ? AND TRIM(orderStatus) = ?;";
+
+   private final String _text;
+
+   OrderStatus(String text) {
+      this._text = text;
+   }
+
+   /**
+    * @return the value stored in FoodOrder.orderStatus
+    */
+   public String text() {
+      return this._text;
+   }
+
+   /**
+    * @return the status that follows this one, or null for complete
+    */
+   public OrderStatus next() {
+      int i = ordinal() + 1;
+      return i < values().length ? values()[i] : null;
+   }
+
+   /**
+    * @param target a status
+    * @return true if an order may move from this status to target
+    */
+   public boolean canMoveTo(OrderStatus target) {
+      return target != null && target == next();
+   }
+
+   /**
+    * @param text a stored orderStatus; case and surrounding spaces are ignored
+    * @return the matching status, or null if the text is not a known status
+    */
+   public static OrderStatus parse(String text) {
+      if (text == null) {
+         return null;
+      }
+      String s = text.trim();
+      for (OrderStatus status : values()) {
+         if (status._text.equalsIgnoreCase(s)) {
+            return status;
+         }
+      }
+      return null;
+   }//end parse
+
+   /**
+    * Moves an order from the status the caller last saw to the next one.
+    * The order's current status is not read first; the UPDATE only
+    * matches while the order still has the expected status. In
+    * write-behind mode the change is only buffered here, and a lost race
+    * is reported when the buffer is flushed.
+    *
+    * @param esql the PizzaStore used to run the update
+    * @param orderID the order to change
+    * @param expected the status the caller saw
+    * @param target the new status
+    * @return true if the transition was made, false if the order no
+    *         longer had the expected status (or does not exist)
+    * @throws java.lang.IllegalArgumentException when the transition is not allowed
+    * @throws java.sql.SQLException when the update fails
+    */
+   public static boolean transition(PizzaStore esql, int orderID, OrderStatus expected, OrderStatus target)
+         throws SQLException {
+      if (!expected.canMoveTo(target)) {
+         throw new IllegalArgumentException("An order cannot move from " + expected._text + " to " + target._text);
+      }
+      StatusWriteBehind writeBehind = esql.getStatusWriteBehind();
+      if (writeBehind != null) {
+         try {
+            return writeBehind.submit(orderID, expected, target);
+         } catch (IOException e) {
+            SessionIO.console().println("Unable to spool status change, writing it directly: " + e.getMessage());
+         }
+      }
+      QueryMetrics.tag("orderStatus.transition");
+      boolean won = esql.executeUpdate(TRANSITION, target._text, orderID, expected._text) == 1;
+      if (won) {
+         if (esql.getEventJournal() != null) {
+            esql.getEventJournal().statusChanged(orderID, expected._text, target._text);
+         }
+         if (target == COMPLETE && esql.getSalesRollup() != null) {
+            esql.getSalesRollup().orderCompleted(orderID);
+         }
+         // last, since announcing the change can fail
+         esql.getOpenOrderFeed().statusChanged(orderID, target._text);
+      }
+      return won;
+   }//end transition
+
+   /**
+    * Reads an order's current status, e.g. to explain a lost transition.
+    *
+    * @param esql the PizzaStore used to run the query
+    * @param orderID the order to read
+    * @return the stored status text, or null if the order does not exist
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static String current(PizzaStore esql, int orderID) throws SQLException {
+      QueryMetrics.tag("orderStatus.current");
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT orderStatus FROM FoodOrder WHERE orderID = ?;", orderID);
+      return rows.isEmpty() ? null : rows.get(0).get(0);
+   }
+
+}//end OrderStatus
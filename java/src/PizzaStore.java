@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLClientInfoException;
@@ -23,15 +24,21 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.List;
+import java.time.LocalDate;
 import java.time.LocalDateTime; // getting time
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.sql.Timestamp;
 
 
 //import com.apple.laf.resources.aqua_zh_TW;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.lang.Math;
 
 /**
@@ -42,13 +49,34 @@ import java.lang.Math;
 @SuppressWarnings("deprecation")
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by the query helpers.
+   private ConnectionPool _pool = null;
+
+   // block allocator for FoodOrder.orderID
+   private IdAllocator _orderIds = null;
+
+   // in-memory copy of the Items table
+   private MenuCatalog _menu = null;
+
+   // in-memory copy of the Store table indexed by state and city
+   private StoreDirectory _stores = null;
+
+   // write-behind per store, item and hour sales totals
+   private SalesRollup _rollup = null;
+
+   // orders that are not complete, kept in sync across JVMs
+   private OpenOrderFeed _openOrders = null;
+
+   // local audit journal of order and menu events, null unless configured
+   private EventJournal _journal = null;
+
+   // buffered, group-committed status changes, null unless configured
+   private StatusWriteBehind _statusWriteBehind = null;
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience; it reads from the
+   // keyboard unless the current thread has a SessionIO binding.
+   static BufferedReader in = SessionIO.reader();
 
    /**
     * Creates a new instance of PizzaStore
@@ -64,11 +92,56 @@ public class PizzaStore {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         // prepareThreshold controls after how many executions of a cached
+         // PreparedStatement the driver switches to a named server-side plan
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname +
+                      "?prepareThreshold=" + Integer.getInteger("pizzastore.stmt.prepareThreshold", 2);
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool; sizes can be tuned with -Dpizzastore.pool.*
+         this._pool = new ConnectionPool(url, user, passwd,
+                                         Integer.getInteger("pizzastore.pool.min", 1),
+                                         Integer.getInteger("pizzastore.pool.max", 8),
+                                         Long.getLong("pizzastore.pool.borrowTimeoutMs", 5000L),
+                                         Long.getLong("pizzastore.pool.idleTimeoutMs", 60000L));
+
+         // bring the schema up to date before anything is served; only the
+         // missing migrations run, so this is cheap on every later start
+         if (Boolean.parseBoolean(System.getProperty("pizzastore.migrate", "true"))) {
+            SchemaMigrator.migrate(this);
+         }
+
+         this._orderIds = new IdAllocator(this, "foodorder_orderid_blocks", "FoodOrder", "orderID",
+                                          Integer.getInteger("pizzastore.orderid.blockSize", 50));
+         this._menu = new MenuCatalog(this, Long.getLong("pizzastore.menu.ttlMs", 300000L));
+         this._stores = new StoreDirectory(this, Long.getLong("pizzastore.stores.refreshMs", 60000L));
+         this._rollup = new SalesRollup(this, Long.getLong("pizzastore.rollup.flushMs", 1000L));
+         this._openOrders = new OpenOrderFeed(this);
+
+         // the event journal is written only when a directory is configured;
+         // every JVM needs a directory of its own
+         String journalDir = System.getProperty("pizzastore.journal.dir");
+         if (journalDir != null) {
+            this._journal = new EventJournal(new File(journalDir),
+                                             Integer.getInteger("pizzastore.journal.segmentBytes", 16 << 20),
+                                             Long.getLong("pizzastore.journal.flushMs", 200L));
+         }
+
+         // status changes are written behind only when a spool directory is
+         // configured; every JVM needs a directory of its own
+         String spoolDir = System.getProperty("pizzastore.status.spoolDir");
+         if (spoolDir != null) {
+            this._statusWriteBehind = new StatusWriteBehind(this, new File(spoolDir),
+                                                            Long.getLong("pizzastore.status.flushMs", 100L),
+                                                            Integer.getInteger("pizzastore.status.batchSize", 256));
+         }
+
+         // per-operation query metrics are always available over JMX; the
+         // Prometheus text dump is written only when a file is configured
+         String metricsFile = System.getProperty("pizzastore.metrics.file");
+         if (metricsFile != null) {
+            QueryMetrics.startDump(new File(metricsFile), Long.getLong("pizzastore.metrics.intervalSecs", 15L));
+         }
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -85,14 +158,25 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         int rows = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+         QueryMetrics.record (start, rows);
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
    }//end executeUpdate
 
    /**
@@ -105,12 +189,33 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         int rows = printResult (conn, query);
+         QueryMetrics.record (start, rows);
+         return rows;
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQueryAndPrintResult
+
+   private int printResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
+      int rowCount = printRows (rs);
+      stmt.close();
+      return rowCount;
+   }//end printResult
 
+   private int printRows (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -134,9 +239,8 @@ public class PizzaStore {
          System.out.println ();
          ++rowCount;
       }//end while
-      stmt.close();
       return rowCount;
-   }//end executeQuery
+   }//end printRows
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -148,12 +252,33 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         List<List<String>> result = returnResult (conn, query);
+         QueryMetrics.record (start, result.size ());
+         return result;
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> returnResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
+      List<List<String>> result = collectRows (rs);
+      stmt.close ();
+      return result;
+   }//end returnResult
 
+   private List<List<String>> collectRows (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -171,9 +296,8 @@ public class PizzaStore {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end collectRows
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -184,51 +308,366 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       long start = System.nanoTime ();
+       Connection conn = null;
+       try {
+          conn = this._pool.borrow ();
+          // creates a statement object
+          Statement stmt = conn.createStatement ();
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          QueryMetrics.record (start, rowCount);
+          return rowCount;
+       } catch (SQLException e) {
+          QueryMetrics.error (start);
+          throw e;
+       } finally {
+          this._pool.release (conn);
+       }
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to advance a sequence and return its new value. It works on
+    * any pooled connection; new keys come from IdAllocator.
+    *
+    * @param sequence name of the DB sequence
+    * @return next value of the sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long getNextSeqVal(String sequence) throws SQLException {
+      ResultTable result = executeQueryAndReturnTable ("SELECT nextval(?::regclass);", sequence);
+      return result.getLong (0, 0);
+   }
 
-       int rowCount = 0;
+   /**
+    * Returns the allocator that hands out new FoodOrder IDs.
+    *
+    * @return the order ID allocator
+    */
+   public IdAllocator getOrderIdAllocator() {
+      return this._orderIds;
+   }
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Returns the in-memory menu catalog.
+    *
+    * @return the menu catalog
+    */
+   public MenuCatalog getMenuCatalog() {
+      return this._menu;
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Returns the in-memory store directory.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @return the store directory
+    */
+   public StoreDirectory getStoreDirectory() {
+      return this._stores;
+   }
+
+   /**
+    * Returns the writer that keeps the sales rollups up to date.
+    *
+    * @return the sales rollup writer
+    */
+   public SalesRollup getSalesRollup() {
+      return this._rollup;
+   }
+
+   /**
+    * Returns the feed of orders that are not complete yet.
+    *
+    * @return the open order feed
+    */
+   public OpenOrderFeed getOpenOrderFeed() {
+      return this._openOrders;
+   }
+
+   /**
+    * Returns the audit journal of order and menu events.
+    *
+    * @return the event journal, or null when no journal is configured
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public EventJournal getEventJournal() {
+      return this._journal;
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Returns the buffer that writes status changes in batches.
+    *
+    * @return the status write-behind buffer, or null when status changes are written directly
+    */
+   public StatusWriteBehind getStatusWriteBehind() {
+      return this._statusWriteBehind;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Returns the connection pool backing the query helpers, for callers
+    * that need to run several statements on the same connection.
+    *
+    * @return the connection pool
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }
+
+   /*
+    * Binds the arguments to a cached PreparedStatement on the connection.
+    */
+   private PreparedStatement prepare (Connection conn, String sql, Object... args) throws SQLException {
+      PreparedStatement stmt = this._pool.statementCache (conn).prepare (sql);
+      stmt.clearParameters ();
+      for (int i = 0; i < args.length; ++i)
+         stmt.setObject (i + 1, args[i]);
+      return stmt;
+   }
+
+   /**
+    * Method to execute a parameterized update SQL statement. The statement
+    * is prepared once per connection and reused on later calls.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         int rows = prepare (conn, sql, args).executeUpdate ();
+         QueryMetrics.record (start, rows);
+         return rows;
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized query and print the results to
+    * standard out.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         ResultSet rs = prepare (conn, sql, args).executeQuery ();
+         try {
+            int rows = printRows (rs);
+            QueryMetrics.record (start, rows);
+            return rows;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a parameterized query and stream the results to
+    * standard out. The query runs inside a transaction so the driver uses
+    * a server-side cursor and fetches fetchSize rows at a time; rows are
+    * written out as they arrive, so memory stays flat regardless of the
+    * result size. A summary line with rows/sec and peak heap is printed
+    * at the end.
+    *
+    * @param fetchSize number of rows fetched per round trip
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStreamResult (int fetchSize, String sql, Object... args) throws SQLException {
+      if (fetchSize < 1)
+         throw new IllegalArgumentException ("fetchSize must be positive: " + fetchSize);
+      Runtime runtime = Runtime.getRuntime ();
+      long peakHeap = runtime.totalMemory () - runtime.freeMemory ();
+      long start = System.nanoTime ();
+      int rowCount = 0;
+
+      PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), 1 << 16));
+      Connection conn = null;
+      boolean failed = true;
+      try {
+         conn = this._pool.borrow ();
+         // cursor-based fetch needs autocommit off; release() restores it
+         conn.setAutoCommit (false);
+         PreparedStatement stmt = prepare (conn, sql, args);
+         stmt.setFetchSize (fetchSize);
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            while (rs.next ()){
+               if (rowCount == 0){
+                  for (int i = 1; i <= numCol; ++i)
+                     out.print (rsmd.getColumnName (i) + "\t");
+                  out.println ();
+               }
+               for (int i = 1; i <= numCol; ++i)
+                  out.print (rs.getString (i) + "\t");
+               out.println ();
+               // sample the heap once per fetched batch
+               if (++rowCount % fetchSize == 0){
+                  peakHeap = Math.max (peakHeap, runtime.totalMemory () - runtime.freeMemory ());
+                  out.flush ();
+               }
+            }//end while
+         } finally {
+            rs.close ();
+            stmt.setFetchSize (0);
+         }
+         conn.commit ();
+         failed = false;
+      } finally {
+         this._pool.release (conn);
+         if (failed)
+            QueryMetrics.error (start);
+         else
+            QueryMetrics.record (start, rowCount);
+         peakHeap = Math.max (peakHeap, runtime.totalMemory () - runtime.freeMemory ());
+         double secs = (System.nanoTime () - start) / 1e9;
+         out.printf ("-- %d row(s) in %.3f s (%.0f rows/sec), peak heap %.1f MB%n",
+                     rowCount, secs, secs > 0 ? rowCount / secs : 0.0, peakHeap / (1024.0 * 1024.0));
+         out.flush ();
+      }
+      return rowCount;
+   }//end executeQueryAndStreamResult
+
+   /**
+    * Method to execute a parameterized query and return the results column
+    * by column, with numbers and timestamps in primitive arrays. Prefer it
+    * over executeQueryAndReturnResult for large reads and for results that
+    * are read as numbers.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryAndReturnTable (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         ResultSet rs = prepare (conn, sql, args).executeQuery ();
+         try {
+            ResultTable result = ResultTable.read (rs);
+            QueryMetrics.record (start, result.getRowCount ());
+            return result;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQueryAndReturnTable
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         ResultSet rs = prepare (conn, sql, args).executeQuery ();
+         try {
+            List<List<String>> result = collectRows (rs);
+            QueryMetrics.record (start, result.size ());
+            return result;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query and return the number of results.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @param args the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow ();
+         ResultSet rs = prepare (conn, sql, args).executeQuery ();
+         int rowCount = 0;
+         while (rs.next ())
+            ++rowCount;
+         rs.close ();
+         QueryMetrics.record (start, rowCount);
+         return rowCount;
+      } catch (SQLException e) {
+         QueryMetrics.error (start);
+         throw e;
+      } finally {
+         this._pool.release (conn);
+      }
+   }//end executeQuery
+
+   /**
+    * Method to close the pooled physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._pool != null){
+         if (this._statusWriteBehind != null)
+            this._statusWriteBehind.close ();
+         if (this._rollup != null)
+            this._rollup.close ();
+         if (this._openOrders != null)
+            this._openOrders.close ();
+         if (this._journal != null)
+            this._journal.close ();
+         System.out.println (this._pool.getStats ());
+         System.out.println (StatementCache.getStats ());
+         String metricsFile = System.getProperty ("pizzastore.metrics.file");
+         if (metricsFile != null)
+            QueryMetrics.stopDump (new File (metricsFile));
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -258,65 +697,7 @@ public class PizzaStore {
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("\nMAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Profile");
-                System.out.println("2. Update Profile");
-                System.out.println("3. View Menu");
-                System.out.println("4. Place Order"); //make sure user specifies which store
-                System.out.println("5. View Full Order ID History");
-                System.out.println("6. View Past 5 Order IDs");
-                System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                System.out.println("8. View Stores"); 
-
-                //**the following functionalities should only be able to be used by drivers & managers**
-                System.out.println("9. Update Order Status");
-
-                //**the following functionalities should ony be able to be used by managers**
-                System.out.println("10. Update Menu");
-                //System.out.println("11. Update User");
-
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql,authorisedUser); break;
-                   case 2: updateProfile(esql,authorisedUser); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql,authorisedUser); break;
-                   case 10: updateMenu(esql,authorisedUser); break;
-                  // case 11: updateUser(esql); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         runMenu(esql);
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -333,6 +714,77 @@ public class PizzaStore {
       }//end try
    }//end main
 
+   /**
+    * Runs the interactive menus until the user exits. Input comes from
+    * PizzaStore.in and output goes to System.out, so the same loop serves
+    * the console and SessionServer sessions.
+    *
+    * @param esql the PizzaStore the handlers run against
+    */
+   public static void runMenu(PizzaStore esql) {
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         System.out.println("MAIN MENU");
+         System.out.println("---------");
+         System.out.println("1. Create user");
+         System.out.println("2. Log in");
+         System.out.println("9. < EXIT");
+         String authorisedUser = null;
+         switch (readChoice()){
+            case 1: CreateUser(esql); break;
+            case 2: authorisedUser = LogIn(esql); break;
+            case 9: keepon = false; break;
+            default : System.out.println("Unrecognized choice!"); break;
+         }//end switch
+         if (authorisedUser != null) {
+           boolean usermenu = true;
+           while(usermenu) {
+             System.out.println("\nMAIN MENU");
+             System.out.println("---------");
+             System.out.println("1. View Profile");
+             System.out.println("2. Update Profile");
+             System.out.println("3. View Menu");
+             System.out.println("4. Place Order"); //make sure user specifies which store
+             System.out.println("5. View Full Order ID History");
+             System.out.println("6. View Past 5 Order IDs");
+             System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+             System.out.println("8. View Stores"); 
+
+             //**the following functionalities should only be able to be used by drivers & managers**
+             System.out.println("9. Update Order Status");
+
+             //**the following functionalities should ony be able to be used by managers**
+             System.out.println("10. Update Menu");
+             System.out.println("11. View Sales Report");
+             System.out.println("12. Revenue by Store and State");
+
+             System.out.println(".........................");
+             System.out.println("20. Log out");
+             switch (readChoice()){
+                case 1: viewProfile(esql,authorisedUser); break;
+                case 2: updateProfile(esql,authorisedUser); break;
+                case 3: viewMenu(esql); break;
+                case 4: placeOrder(esql, authorisedUser); break;
+                case 5: viewAllOrders(esql, authorisedUser); break;
+                case 6: viewRecentOrders(esql, authorisedUser); break;
+                case 7: viewOrderInfo(esql, authorisedUser); break;
+                case 8: viewStores(esql); break;
+                case 9: updateOrderStatus(esql,authorisedUser); break;
+                case 10: updateMenu(esql,authorisedUser); break;
+                case 11: viewSalesReport(esql,authorisedUser); break;
+                case 12: viewStoreAnalytics(esql,authorisedUser); break;
+
+
+
+                case 20: usermenu = false; UserSession.end(); break;
+                default : System.out.println("Unrecognized choice!"); break;
+             }
+           }
+         }
+      }//end while
+   }//end runMenu
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -352,7 +804,7 @@ public class PizzaStore {
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
             break;
-         }catch (Exception e) {
+         }catch (IOException | NumberFormatException e) {
             System.out.println("Your input is invalid!");
             continue;
          }//end try
@@ -383,8 +835,10 @@ public class PizzaStore {
          input = in.readLine();
          query += "'" + input + "');";
 
-         int rowCount = esql.executeQuery(query);
-         System.out.println ("total row(s): " + rowCount);
+         // an INSERT returns no result set, so run it as an update
+         QueryMetrics.tag("createUser.insert");
+         esql.executeUpdate(query);
+         System.out.println ("total row(s): 1");
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -405,12 +859,15 @@ public class PizzaStore {
          System.out.print("Enter password: ");
          String entered_pw = in.readLine();
 
-         String query = "SELECT login FROM Users WHERE login = '" + entered_login + 
-                       "' AND password = '" + entered_pw + "';";
+         // the whole profile is read here once and kept for the session
+         String query = "SELECT login, password, role, favoriteItems, phoneNum FROM Users WHERE login = ? AND password = ?;";
          
-         List<List<String>> result = esql.executeQueryAndReturnResult(query); //List<List<String>>: all rows retrieved , List<String>: Represents single row//
+         QueryMetrics.tag("logIn.checkCredentials");
+         List<List<String>> result = esql.executeQueryAndReturnResult(query, entered_login, entered_pw); //List<List<String>>: all rows retrieved , List<String>: Represents single row//
 
          if (!result.isEmpty()) { //found a match//
+            List<String> row = result.get(0);
+            UserSession.begin(new UserSession(entered_login, row.get(1), row.get(2), row.get(3), row.get(4)));
             System.out.println("Login successful. Welcome, " + entered_login + "!");
             return entered_login;  // Return the username to indicate success
         } 
@@ -430,9 +887,17 @@ public class PizzaStore {
 
 public static void viewProfile(PizzaStore esql, String user) {
    try {
-       // Now selecting role along with other fields
-       String query = "SELECT login, password, role, favoriteItems, phoneNum FROM Users WHERE login = '" + user + "';";
-       List<List<String>> result = esql.executeQueryAndReturnResult(query);
+       List<List<String>> result = new ArrayList<List<String>>();
+       UserSession session = UserSession.forUser(user);
+       if (session != null) {
+           result.add(Arrays.asList(session.getLogin(), session.getPassword(), session.getRole(),
+                                    session.getFavoriteItems(), session.getPhoneNum()));
+       } else {
+           // Now selecting role along with other fields
+           String query = "SELECT login, password, role, favoriteItems, phoneNum FROM Users WHERE login = ?;";
+           QueryMetrics.tag("viewProfile.read");
+           result = esql.executeQueryAndReturnResult(query, user);
+       }
 
        if (!result.isEmpty()) {
            List<String> row = result.get(0); // Only one row expected since login is unique
@@ -455,9 +920,14 @@ public static void viewProfile(PizzaStore esql, String user) {
 
 
    public static String get_role(PizzaStore esql, String user) {
+      UserSession session = UserSession.forUser(user);
+      if (session != null) {
+          return session.getRole();
+      }
       try {
-          String query = "SELECT role FROM Users WHERE login = '" + user + "';";
-          return esql.executeQueryAndReturnResult(query).get(0).get(0).trim(); 
+          String query = "SELECT role FROM Users WHERE login = ?;";
+          QueryMetrics.tag("getRole");
+          return esql.executeQueryAndReturnResult(query, user).get(0).get(0).trim(); 
       } 
       catch (Exception e) {
           System.err.println("Error fetching role: " + e.getMessage());
@@ -548,6 +1018,7 @@ public static void viewProfile(PizzaStore esql, String user) {
            
                // Execute query with correct SQL formatting
                query = "SELECT login FROM Users WHERE TRIM(role) = '" + role + "' ORDER BY login;";
+               QueryMetrics.tag("updateProfile.listUsers");
                List<List<String>> users = esql.executeQueryAndReturnResult(query);
            
                if (users.isEmpty()) {
@@ -581,8 +1052,9 @@ public static void viewProfile(PizzaStore esql, String user) {
                          managed_user = in.readLine().trim(); // Read user input
                          
                          // Check if the username exists in the database
-                         String checkQuery = "SELECT COUNT(*) FROM Users WHERE login = '" + managed_user + "';";
-                         List<List<String>> result = esql.executeQueryAndReturnResult(checkQuery);
+                         String checkQuery = "SELECT COUNT(*) FROM Users WHERE login = ?;";
+                         QueryMetrics.tag("updateProfile.checkUser");
+                         List<List<String>> result = esql.executeQueryAndReturnResult(checkQuery, managed_user);
                  
                          if (!result.isEmpty() && Integer.parseInt(result.get(0).get(0)) > 0) {
                              System.out.println("User found: " + managed_user);
@@ -616,6 +1088,7 @@ public static void viewProfile(PizzaStore esql, String user) {
                      
                      // Update login in the database
                      query = "UPDATE Users SET login = '" + new_login + "' WHERE login = '" + managed_user + "';";
+                     QueryMetrics.tag("updateProfile.changeLogin");
                      esql.executeUpdate(query);
                      
                      System.out.println("User login updated successfully.");
@@ -642,7 +1115,12 @@ public static void viewProfile(PizzaStore esql, String user) {
 
                      // Update role in the database
                      query = "UPDATE Users SET role = '" + new_role + "' WHERE login = '" + managed_user + "';";
+                     QueryMetrics.tag("updateProfile.changeRole");
                      esql.executeUpdate(query);
+                     UserSession session = UserSession.forUser(managed_user);
+                     if (session != null) {
+                        session.update("role", new_role);
+                     }
                      
                      System.out.println("User role updated successfully.");
                   } catch (IOException e) {
@@ -664,7 +1142,12 @@ public static void viewProfile(PizzaStore esql, String user) {
                query = "UPDATE Users SET "+ action_query + " = '" + new_data + "' WHERE login = '" + user + "';";
                System.out.println("New " + action + ": " + new_data);
                try {
+                  QueryMetrics.tag("updateProfile.update");
                   esql.executeUpdate(query);
+                  UserSession session = UserSession.forUser(user);
+                  if (session != null) {
+                     session.update(action_query, new_data);
+                  }
             } catch (SQLException e) {
                   System.err.println("SQL Error: " + e.getMessage());
             }
@@ -701,35 +1184,33 @@ public static void viewProfile(PizzaStore esql, String user) {
          System.out.println("7. Descending Prices");
          System.out.println("8. Back");
 
+         // every listing is served from the in-memory menu catalog
+         MenuCatalog menu = esql.getMenuCatalog();
          switch (readChoice()){
             case 1: 
                try{
-                  String query = "SELECT * FROM Items;";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.all());
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
                break;
             case 2: 
                try{
-                  String query = "SELECT * FROM Items WHERE typeOfItem = ' sides';";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.byType("sides"));
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
                break;
             case 3: 
                try{
-                  String query = "SELECT * FROM Items WHERE typeOfItem = ' drinks';";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.byType("drinks"));
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
                break;
             case 4: 
                try{
-                  String query = "SELECT * FROM Items WHERE typeOfItem = ' entree';";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.byType("entree"));
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
@@ -741,25 +1222,29 @@ public static void viewProfile(PizzaStore esql, String user) {
                      System.out.println("Enter a price: ");
                      price = in.readLine();
                   }
-
-                  String query = "SELECT * FROM Items WHERE price < " + price + ";";
-                  esql.executeQueryAndPrintResult(query);
+                  System.out.println("Enter a type (sides, drinks, entree) or press Enter for all: ");
+                  String type = in.readLine();
+
+                  // binary search over the catalog's price index
+                  if (type == null || type.trim().isEmpty()) {
+                     MenuCatalog.printItems(menu.underPrice(Double.parseDouble(price)));
+                  } else {
+                     MenuCatalog.printItems(menu.priceRange(type, Double.NEGATIVE_INFINITY, Double.parseDouble(price)));
+                  }
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
                break;
             case 6: 
                try{
-                  String query = "SELECT * FROM Items ORDER BY price ASC;";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.byPriceAscending());
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
                break;
             case 7: 
                try{
-                  String query = "SELECT * FROM Items ORDER BY price DESC;";
-                  esql.executeQueryAndPrintResult(query);
+                  MenuCatalog.printItems(menu.byPriceDescending());
                }catch(Exception e){
                   System.err.println (e.getMessage());
                }
@@ -773,11 +1258,12 @@ public static void viewProfile(PizzaStore esql, String user) {
    
    // Helper function to check valid store
    public static int validStore(PizzaStore esql, String userStore){
-      String query = "SELECT * FROM Store WHERE storeID = " + userStore + ";";
+      String query = "SELECT * FROM Store WHERE storeID = ?;";
       int rowCount = 0;
       try{
-         rowCount = esql.executeQuery(query);
-      } catch (SQLException e) {
+         QueryMetrics.tag("placeOrder.validStore");
+         rowCount = esql.executeQuery(query, Integer.parseInt(userStore.trim()));
+      } catch (SQLException | NumberFormatException e) {
          return 0;
       }
       return rowCount;
@@ -785,46 +1271,40 @@ public static void viewProfile(PizzaStore esql, String user) {
 
    // Helper function to check valid order
    public static int validOrder(PizzaStore esql, String userOrder){
-      String query = "SELECT * FROM Items WHERE itemName = '" + userOrder + "';";
-      int rowCount = 0;
       try{
-         rowCount = esql.executeQuery(query);
+         return esql.getMenuCatalog().get(userOrder) == null ? 0 : 1;
       } catch (SQLException e) {
          return 0;
       }
-      return rowCount;
    }
 
    // Helper function to generate the unique OrderID
+   // IDs come from a block held in memory, so they are unique across
+   // all stores, sessions and JVMs; userStore is no longer needed.
    public static int generateOrderID(PizzaStore esql, String userStore) {
-      String query = "SELECT MAX(orderID) FROM FoodOrder WHERE storeID = " + userStore + ";";
-      int orderID = 0;
       try {
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         // Get the max value string from the result
-         String maxStr = result.get(0).get(0);
-         if (maxStr == null) {
-            orderID = 1;  // No order exists yet for this store
-         } else {
-            orderID = Integer.parseInt(maxStr) + 1;
-         }
+         return esql.getOrderIdAllocator().next();
       } catch (SQLException e) {
          return -1;
       }
-      return orderID;
    }
    
-   // Helper function to print prices
-   public static void printPrices(PizzaStore esql, int orderID){
-      String query = "SELECT iio.itemName, iio.quantity, i.price * iio.quantity AS totalCost "
-                  + "FROM ItemsInOrder iio "
-                  + "JOIN Items i ON iio.itemName = i.itemName "
-                  + "WHERE iio.orderID = " + orderID + ";";      
-             
-      try{
-         orderID = esql.executeQueryAndPrintResult(query);
+   // Helper function to look up a menu item, null if it does not exist.
+   // Case, extra spaces, a unique start of a name and typos are forgiven;
+   // when the input is not one item the closest names are suggested
+   public static MenuCatalog.MenuItem lookupItem(PizzaStore esql, String itemName) {
+      try {
+         ItemMatcher.Match match = esql.getMenuCatalog().match(itemName);
+         if (match.item == null && !match.suggestions.isEmpty()) {
+            StringBuilder names = new StringBuilder();
+            for (MenuCatalog.MenuItem suggestion : match.suggestions) {
+               names.append(names.length() == 0 ? "" : ", ").append(suggestion.name);
+            }
+            System.out.println("Did you mean: " + names + "?");
+         }
+         return match.item;
       } catch (SQLException e) {
-         
+         return null;
       }
    }
 
@@ -836,11 +1316,12 @@ public static void viewProfile(PizzaStore esql, String user) {
             userStore = in.readLine();
          }
 
-         String userOrder = "";
-         String option = "";
          boolean going = true;
          int orderID = generateOrderID(esql, userStore);
-         double totalPrice = 0.0;
+         if (orderID < 0) {
+            System.out.println("Unable to allocate an order ID. Please try again.");
+            return;
+         }
 
          // Get time
          LocalDateTime now = LocalDateTime.now();
@@ -848,10 +1329,8 @@ public static void viewProfile(PizzaStore esql, String user) {
          String timestamp = now.format(formatter);
          Timestamp sqlTimestamp = Timestamp.valueOf(timestamp);
 
-         // update the entire food order
-         String query = "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-                        "VALUES (" + orderID + ", '" + userLogin + "', " + userStore + ", " + 0.0 + ", '" + sqlTimestamp + "', 'incomplete');";
-         esql.executeUpdate(query);
+         // lines are kept in memory and written in one transaction at checkout
+         OrderBuilder order = new OrderBuilder(orderID, userLogin, Integer.parseInt(userStore.trim()), sqlTimestamp);
 
          while(going){
             System.out.println("\nOrder for Store " + userStore);
@@ -861,9 +1340,10 @@ public static void viewProfile(PizzaStore esql, String user) {
 
             switch (readChoice()){
                case 1:          
-                  while(validOrder(esql, userOrder) < 1){
+                  MenuCatalog.MenuItem item = null;
+                  while(item == null){
                      System.out.println("Place your order: $");
-                     userOrder = in.readLine();
+                     item = lookupItem(esql, in.readLine());
                   }
 
                   int quantity = 1;
@@ -872,22 +1352,13 @@ public static void viewProfile(PizzaStore esql, String user) {
                      try {
                            quantity = Integer.parseInt(in.readLine());
                            break;
-                     } catch (Exception e) {
+                     } catch (IOException | NumberFormatException e) {
                            System.out.println("Invalid input. Please enter a valid integer.");
                      }
                   } while (true);
 
-                  System.out.println("Placing order of " + quantity + "x "+ userOrder);
-
-                  query = "INSERT INTO ItemsInOrder (orderID, itemName, quantity)" + 
-                                 "VALUES (" + orderID + ", '" + userOrder + "'," + quantity + ");";
-                  esql.executeUpdate(query);
-
-                  // update total price 
-                  query = "SELECT price FROM Items WHERE itemName = '" + userOrder + "';";
-                  List<List<String>> result = esql.executeQueryAndReturnResult(query);
-                  double itemPrice = Double.parseDouble(result.get(0).get(0));
-                  totalPrice = totalPrice + (itemPrice * quantity);
+                  System.out.println("Placing order of " + quantity + "x "+ item.name);
+                  order.addLine(item.name, item.price, quantity);
 
                   break;
                case 2:
@@ -898,9 +1369,10 @@ public static void viewProfile(PizzaStore esql, String user) {
                   break;
             }
          }
+         double totalPrice = order.getTotalPrice();
          System.out.println("\nORDER TOTAL ");
          System.out.println("---------");
-         printPrices(esql, orderID);
+         order.printLines();
          System.out.println("---------");
          System.out.println("Total Price: " + String.format("%.2f", totalPrice));
          System.out.println("---------");
@@ -923,9 +1395,8 @@ public static void viewProfile(PizzaStore esql, String user) {
             }
          }
 
-         String updateQuery = "UPDATE FoodOrder SET orderStatus = '" + complete + "', totalPrice = " + totalPrice + 
-                              " WHERE orderID = " + orderID + ";";
-         esql.executeUpdate(updateQuery);
+         // write the order and all of its lines in a single transaction
+         order.commit(esql, complete);
 
       }
       catch(Exception e){
@@ -937,16 +1408,29 @@ public static void viewProfile(PizzaStore esql, String user) {
 
    public static void viewAllOrders(PizzaStore esql, String userLogin) {
       String role = get_role(esql, userLogin);
-      String query = "SELECT iio.itemName, iio.quantity, (i.price * iio.quantity) AS totalCost " +
-                     "FROM FoodOrder fo " +
-                     "JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
-                     "JOIN Items i ON iio.itemName = i.itemName ";
-                           
-      if(role.equals("customer")){
-         query = query + "WHERE fo.login = '" + userLogin + "';";
-      }
+      // the history can be long, so it is shown a page of orders at a time
+      int pageSize = Integer.getInteger("pizzastore.history.pageSize", 10);
+      OrderHistory history = new OrderHistory(esql, role.equals("customer") ? userLogin : null, pageSize);
       try{
-         esql.executeQueryAndPrintResult(query);
+         int page = 1;
+         while (true) {
+            QueryMetrics.tag("viewAllOrders.page");
+            OrderHistory.Page orders = history.next();
+            if (orders.orderCount == 0) {
+               System.out.println(page == 1 ? "No orders found." : "No more orders.");
+               break;
+            }
+            System.out.println("\nOrders - page " + page);
+            orders.print();
+            if (!orders.hasMore) {
+               break;
+            }
+            System.out.print("Enter n for the next page, anything else to return: ");
+            if (!in.readLine().trim().equalsIgnoreCase("n")) {
+               break;
+            }
+            ++page;
+         }
       }catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
       }
@@ -955,19 +1439,16 @@ public static void viewProfile(PizzaStore esql, String user) {
 
    public static void viewRecentOrders(PizzaStore esql, String userLogin) {
       String role = get_role(esql, userLogin);
-      String query = "SELECT iio.itemName, iio.quantity, (i.price * iio.quantity) AS totalCost " +
-                     "FROM FoodOrder fo " +
-                     "JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
-                     "JOIN Items i ON iio.itemName = i.itemName ";
-                     
-      if (role.equals("customer")) {
-         query += "WHERE fo.login = '" + userLogin + "' ";
-      }
-      
-      query += "ORDER BY fo.orderTimestamp DESC LIMIT 5;";
-      
+      // the five most recent orders are picked first, then only their lines are read
+      OrderHistory recent = new OrderHistory(esql, role.equals("customer") ? userLogin : null, 5);
       try {
-         esql.executeQueryAndPrintResult(query);
+         QueryMetrics.tag("viewRecentOrders.list");
+         OrderHistory.Page orders = recent.next();
+         if (orders.orderCount == 0) {
+            System.out.println("No orders found.");
+         } else {
+            orders.print();
+         }
       } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
       }
@@ -981,11 +1462,16 @@ public static void viewProfile(PizzaStore esql, String user) {
                      "JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
                      "JOIN Items i ON iio.itemName = i.itemName ";
                               
-      if(role.equals("customer")){
-         query += "WHERE fo.login = '" + userLogin + "' ";
-      }
+      // a manager sees every line of every order, so the rows are streamed
+      // through a cursor instead of being loaded into memory
+      int fetchSize = Integer.getInteger("pizzastore.fetchSize", 500);
       try{
-         esql.executeQueryAndPrintResult(query);
+         QueryMetrics.tag("viewOrderInfo.list");
+         if(role.equals("customer")){
+            esql.executeQueryAndStreamResult(fetchSize, query + "WHERE fo.login = ? ORDER BY fo.orderID;", userLogin);
+         } else {
+            esql.executeQueryAndStreamResult(fetchSize, query + "ORDER BY fo.orderID;");
+         }
       } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
       }
@@ -998,51 +1484,48 @@ public static void viewProfile(PizzaStore esql, String user) {
             System.out.println("\nSTORE SEARCH");
             System.out.println("-------------");
 
+            // the whole drilldown is answered by the in-memory store directory
+            StoreDirectory directory = esql.getStoreDirectory();
+
             // Step 1: Display available states
             System.out.println("Available States:");
-            String stateQuery = "SELECT DISTINCT state FROM Store ORDER BY state;";
-            List<List<String>> states = esql.executeQueryAndReturnResult(stateQuery);
-            
-            for (List<String> row : states) {
-                  System.out.println("- " + row.get(0));
+            for (String state : directory.states()) {
+                  System.out.println("- " + state);
             }
 
             // Step 2: Ask for State Selection
             System.out.print("\nEnter state name: ");
             String stateInput = in.readLine().trim();
-            String filterCondition = " WHERE state ILIKE '" + stateInput + "' ";
 
             // Step 3: Display available cities in that state
             System.out.println("\nAvailable Cities in " + stateInput + ":");
-            String cityQuery = "SELECT DISTINCT city FROM Store WHERE state ILIKE '" + stateInput + "' ORDER BY city;";
-            List<List<String>> cities = esql.executeQueryAndReturnResult(cityQuery);
-
-            for (List<String> row : cities) {
-                  System.out.println("- " + row.get(0));
+            for (String city : directory.cities(stateInput)) {
+                  System.out.println("- " + city);
             }
 
             // Step 4: Ask for City Selection
             System.out.print("\nEnter city name: ");
             String cityInput = in.readLine().trim();
-            filterCondition += " AND city ILIKE '" + cityInput + "' ";
 
             // Step 5: Ask if they want to filter by open/closed stores
+            Boolean isOpen = null;
             System.out.print("Show only open stores? (yes/no, press Enter to skip): ");
             String openFilter = in.readLine().trim().toLowerCase();
             if (openFilter.equals("yes")) {
-                  filterCondition += " AND isOpen ILIKE 'yes' ";
+                  isOpen = Boolean.TRUE;
             } else if (openFilter.equals("no")) {
-                  filterCondition += " AND isOpen ILIKE 'no' ";
+                  isOpen = Boolean.FALSE;
             }
 
             // Step 6: Ask if they want to filter by rating
+            double minRating = Double.NEGATIVE_INFINITY;
             System.out.print("Enter minimum star rating (1-5, press Enter to skip): ");
             String ratingInput = in.readLine().trim();
             if (!ratingInput.isEmpty()) {
                   try {
                      int rating = Integer.parseInt(ratingInput);
                      if (rating >= 1 && rating <= 5) {
-                        filterCondition += " AND reviewScore >= " + rating + " ";
+                        minRating = rating;
                      } else {
                         System.out.println("Invalid rating. Skipping rating filter.");
                      }
@@ -1051,10 +1534,8 @@ public static void viewProfile(PizzaStore esql, String user) {
                   }
             }
 
-            // Execute the query with all filters applied
-            String query = "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store" + filterCondition + ";";
-
-            List<List<String>> results = esql.executeQueryAndReturnResult(query);
+            // Look up the stores with all filters applied
+            List<StoreDirectory.StoreInfo> results = directory.find(stateInput, cityInput, isOpen, minRating);
 
             if (results.isEmpty()) {
                   System.out.println("No matching stores found.");
@@ -1062,13 +1543,13 @@ public static void viewProfile(PizzaStore esql, String user) {
                   // Dynamically adjust column widths
                   int[] columnWidths = {10, 25, 12, 15, 8, 8};
 
-                  for (List<String> row : results) {
-                     columnWidths[0] = Math.max(columnWidths[0], row.get(0).length());
-                     columnWidths[1] = Math.max(columnWidths[1], row.get(1).length());
-                     columnWidths[2] = Math.max(columnWidths[2], row.get(2).length());
-                     columnWidths[3] = Math.max(columnWidths[3], row.get(3).length());
-                     columnWidths[4] = Math.max(columnWidths[4], row.get(4).length());
-                     columnWidths[5] = Math.max(columnWidths[5], row.get(5).length());
+                  for (StoreDirectory.StoreInfo store : results) {
+                     columnWidths[0] = Math.max(columnWidths[0], String.valueOf(store.storeID).length());
+                     columnWidths[1] = Math.max(columnWidths[1], store.address.length());
+                     columnWidths[2] = Math.max(columnWidths[2], store.city.length());
+                     columnWidths[3] = Math.max(columnWidths[3], store.state.length());
+                     columnWidths[4] = Math.max(columnWidths[4], store.isOpenText.length());
+                     columnWidths[5] = Math.max(columnWidths[5], store.reviewScoreText.length());
                   }
 
                   String format = "| %-" + columnWidths[0] + "s | %-" + columnWidths[1] + "s | %-" + columnWidths[2] + "s | %-" +
@@ -1082,8 +1563,9 @@ public static void viewProfile(PizzaStore esql, String user) {
                   System.out.printf(format, "Store ID", "Address", "City", "State", "Open", "Rating");
                   System.out.println(lineSeparator);
 
-                  for (List<String> row : results) {
-                     System.out.printf(format, row.get(0), row.get(1), row.get(2), row.get(3), row.get(4), row.get(5));
+                  for (StoreDirectory.StoreInfo store : results) {
+                     System.out.printf(format, store.storeID, store.address, store.city, store.state,
+                                       store.isOpenText, store.reviewScoreText);
                   }
                   System.out.println(lineSeparator);
             }
@@ -1104,30 +1586,42 @@ public static void viewProfile(PizzaStore esql, String user) {
    public static void updateOrderStatus(PizzaStore esql, String user) {
       try {
          // Check if the user is a manager or driver
-         String roleQuery = "SELECT role FROM Users WHERE login = '" + user + "';";
-         String role = esql.executeQueryAndReturnResult(roleQuery).get(0).get(0).trim();
+         String role = get_role(esql, user);
 
          if (!role.equalsIgnoreCase("manager") && !role.equalsIgnoreCase("driver")) {
             System.out.println("Access Denied: Only managers or drivers can update order status.");
             return;
          }
 
+         // open orders are pushed into the feed as they are placed and
+         // updated, so listing them does not touch FoodOrder
+         OpenOrderFeed feed = esql.getOpenOrderFeed();
          boolean updating = true;
          while (updating) {
             // Display all pending/incomplete orders
             System.out.println("\nPENDING & INCOMPLETE ORDERS:");
-            String listOrdersQuery = "SELECT orderID, login, storeID, totalPrice, orderStatus FROM FoodOrder WHERE orderStatus != 'complete' ORDER BY orderID;";
-            esql.executeQueryAndPrintResult(listOrdersQuery);
+            System.out.println("orderid\tlogin\tstoreid\ttotalprice\torderstatus\t");
+            for (OpenOrderFeed.OpenOrder order : feed.list()) {
+               System.out.println(order.orderID + "\t" + order.login + "\t" + order.storeID + "\t" +
+                                  order.totalPrice + "\t" + order.orderStatus + "\t");
+            }
 
             System.out.println("\nOptions:");
             System.out.println("1. Update an Order Status");
             System.out.println("2. Exit");
+            System.out.println("3. Wait for new orders");
             System.out.print("Enter your choice: ");
 
             int choice = readChoice();
             if (choice == 2) {
                   updating = false;
                   continue;
+            } else if (choice == 3) {
+                  System.out.println("Waiting up to 30 seconds for order changes...");
+                  if (!feed.waitForChange(30000)) {
+                     System.out.println("No changes.");
+                  }
+                  continue;
             } else if (choice != 1) {
                   System.out.println("Invalid choice. Try again.");
                   continue;
@@ -1140,38 +1634,44 @@ public static void viewProfile(PizzaStore esql, String user) {
                   continue;
             }
 
-            // Verify the order exists
-            String checkOrderQuery = "SELECT COUNT(*) FROM FoodOrder WHERE orderID = '" + orderID + "';";
-            int count = Integer.parseInt(esql.executeQueryAndReturnResult(checkOrderQuery).get(0).get(0));
-
-            if (count == 0) {
+            // The open order feed already holds the status; complete orders
+            // are final and are not in it
+            int id;
+            try {
+                  id = Integer.parseInt(orderID);
+            } catch (NumberFormatException e) {
                   System.out.println("Error: Order ID not found.");
                   continue;
             }
+            OpenOrderFeed.OpenOrder order = feed.get(id);
+            if (order == null) {
+                  System.out.println("Error: Order ID not found or already complete.");
+                  continue;
+            }
+            OrderStatus current = OrderStatus.parse(order.orderStatus);
+            if (current == null) {
+                  System.out.println("Error: Order " + id + " has an unknown status: " + order.orderStatus);
+                  continue;
+            }
 
-            // Ask for new order status using numbers
-            System.out.println("\nSet Order Status:");
-            System.out.println("1. Incomplete");
-            System.out.println("2. Complete");
+            // orders only move one step forward: incomplete -> in-progress -> out-for-delivery -> complete
+            OrderStatus next = current.next();
+            System.out.println("\nOrder " + id + " is " + current.text() + ".");
+            System.out.println("1. Mark as " + next.text());
+            System.out.println("2. Cancel");
             System.out.print("Enter your choice: ");
-            
-            int statusChoice = readChoice();
-            String newStatus = "";
-
-            if (statusChoice == 1) {
-                  newStatus = "incomplete"; // Stored in lowercase
-            } else if (statusChoice == 2) {
-                  newStatus = "complete"; // Stored in lowercase
-            } else {
-                  System.out.println("Invalid choice. Returning to menu.");
+            if (readChoice() != 1) {
                   continue;
             }
 
-            // Update order status
-            String updateQuery = "UPDATE FoodOrder SET orderStatus = '" + newStatus + "' WHERE orderID = '" + orderID + "';";
-            esql.executeUpdate(updateQuery);
-
-            System.out.println("✅ Order ID " + orderID + " updated to status: " + newStatus);
+            // a single conditional update; it fails if someone else changed the order first
+            if (!OrderStatus.transition(esql, id, current, next)) {
+                  String now = OrderStatus.current(esql, id);
+                  System.out.println("Order " + id + " was not updated: it was changed by someone else" +
+                                     (now == null ? "." : " and is now " + now.trim() + "."));
+                  continue;
+            }
+            System.out.println("✅ Order ID " + id + " updated to status: " + next.text());
          }
       } catch (Exception e) {
          System.err.println("Error: " + e.getMessage());
@@ -1184,8 +1684,7 @@ public static void viewProfile(PizzaStore esql, String user) {
       public static void updateMenu(PizzaStore esql, String user) {
          try {
             // Check if the user is a manager
-            String roleQuery = "SELECT role FROM Users WHERE login = '" + user + "';";
-            String role = esql.executeQueryAndReturnResult(roleQuery).get(0).get(0).trim();
+            String role = get_role(esql, user);
    
             if (!role.equalsIgnoreCase("manager")) {
                System.out.println("Access Denied: Only managers can update the menu.");
@@ -1219,13 +1718,19 @@ public static void viewProfile(PizzaStore esql, String user) {
                         String addQuery = "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) " +
                                           "VALUES ('" + itemName + "', '" + ingredients + "', '" + type + "', " + price + ", '" + description + "');";
                         
+                        QueryMetrics.tag("updateMenu.addItem");
                         esql.executeUpdate(addQuery);
+                        esql.getMenuCatalog().refresh();
+                        if (esql.getEventJournal() != null) {
+                           esql.getEventJournal().menuItemUpdated(itemName, Double.parseDouble(price), description);
+                        }
                         System.out.println("Item added successfully!");
                         break;
    
                      case 2: // Update Existing Item
                         System.out.println("\nCURRENT MENU ITEMS:");
                         String listQuery = "SELECT itemName, price FROM Items ORDER BY itemName;";
+                        QueryMetrics.tag("updateMenu.listItems");
                         esql.executeQueryAndPrintResult(listQuery);
    
                         System.out.print("\nEnter the name of the item to update: ");
@@ -1240,7 +1745,12 @@ public static void viewProfile(PizzaStore esql, String user) {
                         String updateQuery = "UPDATE Items SET price = " + newPrice + ", description = '" + newDescription + "' " +
                                              "WHERE itemName = '" + existingItem + "';";
                         
+                        QueryMetrics.tag("updateMenu.updateItem");
                         esql.executeUpdate(updateQuery);
+                        esql.getMenuCatalog().refresh();
+                        if (esql.getEventJournal() != null) {
+                           esql.getEventJournal().menuItemUpdated(existingItem, Double.parseDouble(newPrice), newDescription);
+                        }
                         System.out.println("Item updated successfully!");
                         break;
    
@@ -1256,6 +1766,95 @@ public static void viewProfile(PizzaStore esql, String user) {
             System.err.println("Error: " + e.getMessage());
          }
    }
+
+
+   /*
+    * Shows sales totals to managers. Every report reads the SalesRollup
+    * table, so its cost depends on the number of store/item/hour buckets
+    * in the period, not on the number of orders.
+    */
+   public static void viewSalesReport(PizzaStore esql, String user) {
+      try {
+         if (!get_role(esql, user).equalsIgnoreCase("manager")) {
+            System.out.println("Access Denied: Only managers can view sales reports.");
+            return;
+         }
+         // include this JVM's orders that are still queued
+         esql.getSalesRollup().flush();
+
+         System.out.println("\nSALES REPORT");
+         System.out.println("---------");
+         System.out.println("1. Top items");
+         System.out.println("2. Revenue by store");
+         System.out.println("3. Hourly sales of one store");
+         System.out.println("4. Exit");
+         int choice = readChoice();
+         if (choice < 1 || choice > 3) {
+            return;
+         }
+
+         System.out.print("Number of days to include: ");
+         int days = Integer.parseInt(in.readLine().trim());
+         Timestamp since = Timestamp.valueOf(LocalDateTime.now().minusDays(days));
+
+         switch (choice) {
+            case 1:
+               QueryMetrics.tag("viewSalesReport.topItems");
+               esql.executeQueryAndPrintResult(
+                  "SELECT itemName, SUM(orderCount) AS orders, SUM(quantity) AS quantity, " +
+                  "ROUND(SUM(revenue)::numeric, 2) AS revenue FROM SalesRollup WHERE hourBucket >= ? " +
+                  "GROUP BY itemName ORDER BY revenue DESC LIMIT 10;", since);
+               break;
+            case 2:
+               QueryMetrics.tag("viewSalesReport.byStore");
+               esql.executeQueryAndPrintResult(
+                  "SELECT storeID, SUM(quantity) AS quantity, ROUND(SUM(revenue)::numeric, 2) AS revenue " +
+                  "FROM SalesRollup WHERE hourBucket >= ? GROUP BY storeID ORDER BY revenue DESC;", since);
+               break;
+            case 3:
+               System.out.print("Enter store ID: ");
+               int storeID = Integer.parseInt(in.readLine().trim());
+               QueryMetrics.tag("viewSalesReport.hourly");
+               esql.executeQueryAndPrintResult(
+                  "SELECT hourBucket, SUM(quantity) AS quantity, " +
+                  "ROUND(SUM(revenue)::numeric, 2) AS revenue FROM SalesRollup " +
+                  "WHERE storeID = ? AND hourBucket >= ? GROUP BY hourBucket ORDER BY hourBucket;",
+                  storeID, since);
+               break;
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid number.");
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Shows revenue per state and store over a date range, read from
+    * FoodOrder in parallel by StoreAnalytics. Unlike the sales report it
+    * covers orders placed before the rollups existed.
+    */
+   public static void viewStoreAnalytics(PizzaStore esql, String user) {
+      try {
+         if (!get_role(esql, user).equalsIgnoreCase("manager")) {
+            System.out.println("Access Denied: Only managers can view store analytics.");
+            return;
+         }
+         System.out.print("From date (yyyy-mm-dd, blank for the first order): ");
+         String from = in.readLine().trim();
+         System.out.print("To date, excluded (yyyy-mm-dd, blank for today): ");
+         String to = in.readLine().trim();
+
+         StoreAnalytics analytics = new StoreAnalytics(esql,
+            from.isEmpty() ? null : LocalDate.parse(from),
+            to.isEmpty() ? LocalDate.now().plusDays(1) : LocalDate.parse(to));
+         analytics.run(Runtime.getRuntime().availableProcessors()).print(System.out);
+      } catch (DateTimeParseException e) {
+         System.out.println("Invalid date.");
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
    
   
    // public static void updateUser(PizzaStore esql) { **combined with update profile**
@@ -0,0 +1,268 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records latency, row counts and errors for every database
+ * call, grouped by a named operation such as placeOrder.commit or
+ * viewStores.search. Handlers name the operation with tag() before calling
+ * a query helper; the tag is kept per thread and cleared when the helper
+ * records the call, so a later call that was not tagged is counted as
+ * untagged rather than under a stale name. Recording a call does not
+ * allocate once the operation has been seen.
+ *
+ * Every operation is registered as an MXBean under
+ * pizzastore:type=QueryMetrics,operation=<tag>, and startDump() writes all
+ * operations in Prometheus text format to a local file at a fixed interval.
+ *
+ */
+public class QueryMetrics {
+
+   /**
+    * The JMX view of one operation. Times are in milliseconds.
+    */
+   public interface OperationMXBean {
+      String getOperation();
+      long getCount();
+      long getErrors();
+      long getRows();
+      double getMeanMillis();
+      double getP50Millis();
+      double getP90Millis();
+      double getP99Millis();
+      double getMaxMillis();
+   }
+
+   // the metrics of one operation
+   private static class Operation implements OperationMXBean {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+
+      Operation(String name) {
+         this.name = name;
+      }
+
+      public String getOperation() { return this.name; }
+      public long getCount() { return this.latency.getCount(); }
+      public long getErrors() { return this.errors.get(); }
+      public long getRows() { return this.rows.get(); }
+      public double getMeanMillis() { return this.latency.getMean() / 1e6; }
+      public double getP50Millis() { return this.latency.getValueAtPercentile(50) / 1e6; }
+      public double getP90Millis() { return this.latency.getValueAtPercentile(90) / 1e6; }
+      public double getP99Millis() { return this.latency.getValueAtPercentile(99) / 1e6; }
+      public double getMaxMillis() { return this.latency.getMax() / 1e6; }
+   }//end Operation
+
+   private static final String UNTAGGED = "untagged";
+   private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+   private static final ConcurrentHashMap<String, Operation> _operations = new ConcurrentHashMap<String, Operation>();
+   private static final ThreadLocal<String> _tag = new ThreadLocal<String>();
+   private static ScheduledExecutorService _dumper = null;
+
+   /**
+    * Names the operation that the calling thread's next database call
+    * belongs to. The tag is cleared once that call is recorded.
+    *
+    * @param operation the operation name, e.g. placeOrder.commit
+    */
+   public static void tag(String operation) {
+      _tag.set(operation);
+   }
+
+   /**
+    * @return the operation the calling thread is currently tagged with
+    */
+   public static String currentTag() {
+      String tag = _tag.get();
+      return tag == null ? UNTAGGED : tag;
+   }
+
+   // returns the current tag and clears it
+   private static String takeTag() {
+      String tag = currentTag();
+      _tag.remove();
+      return tag;
+   }
+
+   private static Operation operation(String name) {
+      Operation op = _operations.get(name);
+      if (op == null) {
+         op = _operations.computeIfAbsent(name, Operation::new);
+         register(op);
+      }
+      return op;
+   }
+
+   private static void register(Operation op) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName("pizzastore:type=QueryMetrics,operation=" + ObjectName.quote(op.name));
+         if (!server.isRegistered(name)) {
+            server.registerMBean(op, name);
+         }
+      } catch (Exception e) {
+         // JMX is best effort; the metrics are still recorded and dumped
+      }
+   }
+
+   /**
+    * Records a successful call under the calling thread's current tag and
+    * clears the tag.
+    *
+    * @param startNanos System.nanoTime() taken before the call
+    * @param rows the number of rows returned or affected
+    */
+   public static void record(long startNanos, long rows) {
+      record(takeTag(), startNanos, rows);
+   }
+
+   /**
+    * Records a successful call under the given operation.
+    *
+    * @param operation the operation name
+    * @param startNanos System.nanoTime() taken before the call
+    * @param rows the number of rows returned or affected
+    */
+   public static void record(String operation, long startNanos, long rows) {
+      long elapsed = System.nanoTime() - startNanos;
+      Operation op = operation(operation);
+      op.latency.record(elapsed);
+      op.rows.addAndGet(rows);
+   }
+
+   /**
+    * Records a failed call under the calling thread's current tag and
+    * clears the tag.
+    *
+    * @param startNanos System.nanoTime() taken before the call
+    */
+   public static void error(long startNanos) {
+      error(takeTag(), startNanos);
+   }
+
+   /**
+    * Records a failed call under the given operation.
+    *
+    * @param operation the operation name
+    * @param startNanos System.nanoTime() taken before the call
+    */
+   public static void error(String operation, long startNanos) {
+      long elapsed = System.nanoTime() - startNanos;
+      Operation op = operation(operation);
+      op.latency.record(elapsed);
+      op.errors.incrementAndGet();
+   }
+
+   private static String escape(String s) {
+      return s.replace("\\", "\\\\").replace("\"", "\\\"");
+   }
+
+   /**
+    * @return every operation in Prometheus text exposition format
+    */
+   public static String toPrometheus() {
+      Map<String, Operation> ops = new TreeMap<String, Operation>(_operations);
+      StringWriter text = new StringWriter();
+      PrintWriter out = new PrintWriter(text);
+
+      out.println("# HELP pizzastore_query_duration_seconds Latency of database calls by operation.");
+      out.println("# TYPE pizzastore_query_duration_seconds summary");
+      for (Operation op : ops.values()) {
+         String label = "operation=\"" + escape(op.name) + "\"";
+         for (double q : QUANTILES) {
+            out.printf("pizzastore_query_duration_seconds{%s,quantile=\"%s\"} %.9f%n",
+                       label, q, op.latency.getValueAtPercentile(q * 100) / 1e9);
+         }
+         out.printf("pizzastore_query_duration_seconds_sum{%s} %.9f%n", label, op.latency.getSum() / 1e9);
+         out.printf("pizzastore_query_duration_seconds_count{%s} %d%n", label, op.latency.getCount());
+      }
+
+      out.println("# HELP pizzastore_query_rows_total Rows returned or affected by operation.");
+      out.println("# TYPE pizzastore_query_rows_total counter");
+      for (Operation op : ops.values()) {
+         out.printf("pizzastore_query_rows_total{operation=\"%s\"} %d%n", escape(op.name), op.rows.get());
+      }
+
+      out.println("# HELP pizzastore_query_errors_total Failed database calls by operation.");
+      out.println("# TYPE pizzastore_query_errors_total counter");
+      for (Operation op : ops.values()) {
+         out.printf("pizzastore_query_errors_total{operation=\"%s\"} %d%n", escape(op.name), op.errors.get());
+      }
+      out.flush();
+      return text.toString();
+   }//end toPrometheus
+
+   /**
+    * @return one summary line per operation
+    */
+   public static String summary() {
+      StringBuilder out = new StringBuilder();
+      for (Operation op : new TreeMap<String, Operation>(_operations).values()) {
+         out.append(String.format("%-32s rows=%d errors=%d %s%n", op.name, op.rows.get(), op.errors.get(),
+                                  op.latency.summary()));
+      }
+      return out.toString();
+   }
+
+   /**
+    * Starts writing toPrometheus() to a file at a fixed interval. The file
+    * is replaced atomically so scrapers never see a partial dump.
+    *
+    * @param file where to write the metrics
+    * @param intervalSecs seconds between dumps
+    */
+   public static synchronized void startDump(final File file, long intervalSecs) {
+      if (_dumper != null) {
+         return;
+      }
+      _dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "query-metrics-dump");
+         t.setDaemon(true);
+         return t;
+      });
+      _dumper.scheduleAtFixedRate(() -> dump(file), intervalSecs, intervalSecs, TimeUnit.SECONDS);
+   }//end startDump
+
+   /**
+    * Writes the metrics once more and stops the periodic dump.
+    *
+    * @param file where to write the metrics
+    */
+   public static synchronized void stopDump(File file) {
+      if (_dumper == null) {
+         return;
+      }
+      _dumper.shutdownNow();
+      _dumper = null;
+      dump(file);
+   }
+
+   private static void dump(File file) {
+      try {
+         File dir = file.getAbsoluteFile().getParentFile();
+         File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+         Files.write(tmp.toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         SessionIO.console().println("Unable to write metrics to " + file + ": " + e.getMessage());
+      }
+   }
+
+}//end QueryMetrics
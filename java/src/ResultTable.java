@@ -0,0 +1,343 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class holds a query result column by column. Integer columns are
+ * kept in int[] or long[], floating point and numeric columns in double[]
+ * and timestamps as epoch milliseconds in long[], so reading a row does not
+ * box anything. The only parsing is of REAL values, which are widened
+ * through their shortest decimal text once per distinct value. Text columns hold indexes into one string table
+ * shared by the whole result, so a value repeated in many rows (a state, a
+ * status, an item name) is stored once.
+ *
+ * Handlers read values with the typed getters or turn rows into objects
+ * with a RowMapper. The numeric getters also accept a text column holding
+ * a number, for schemas that store numbers as text.
+ *
+ */
+public class ResultTable {
+
+   /**
+    * Turns one row of a result into an object.
+    */
+   public interface RowMapper<T> {
+      T map(ResultTable table, int row);
+   }
+
+   private static final int INT = 0;
+   private static final int LONG = 1;
+   private static final int DOUBLE = 2;
+   private static final int TIMESTAMP = 3;
+   private static final int TEXT = 4;
+   private static final int REAL = 5;
+
+
+   // the values of one column; only the array for its kind is used
+   private static class Column {
+      final String name;
+      final int kind;
+      int[] ints;
+      long[] longs;
+      double[] doubles;
+      boolean[] nulls;
+
+      Column(String name, int kind, int capacity) {
+         this.name = name;
+         this.kind = kind;
+         if (kind == INT || kind == TEXT) {
+            this.ints = new int[capacity];
+         } else if (kind == DOUBLE || kind == REAL) {
+            this.doubles = new double[capacity];
+         } else {
+            this.longs = new long[capacity];
+         }
+         this.nulls = new boolean[capacity];
+      }
+
+      void grow(int capacity) {
+         if (this.ints != null) {
+            this.ints = Arrays.copyOf(this.ints, capacity);
+         }
+         if (this.longs != null) {
+            this.longs = Arrays.copyOf(this.longs, capacity);
+         }
+         if (this.doubles != null) {
+            this.doubles = Arrays.copyOf(this.doubles, capacity);
+         }
+         this.nulls = Arrays.copyOf(this.nulls, capacity);
+      }
+   }//end Column
+
+   private final Column[] _columns;
+   private final List<String> _strings = new ArrayList<String>();
+   private final HashMap<String, Integer> _stringIndex = new HashMap<String, Integer>();
+   private int _rowCount = 0;
+
+   private ResultTable(Column[] columns) {
+      this._columns = columns;
+   }
+
+   private static int kindOf(int sqlType) {
+      switch (sqlType) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+            return INT;
+         case Types.BIGINT:
+            return LONG;
+         case Types.REAL:
+            return REAL;
+         case Types.FLOAT:
+         case Types.DOUBLE:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return DOUBLE;
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIMESTAMP_WITH_TIMEZONE:
+            return TIMESTAMP;
+         default:
+            return TEXT;
+      }
+   }//end kindOf
+
+   /**
+    * Reads every remaining row of a result set.
+    *
+    * @param rs the result set, positioned before its first row
+    * @return the rows read
+    * @throws java.sql.SQLException when the result set cannot be read
+    */
+   public static ResultTable read(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int capacity = Math.max(16, rs.getFetchSize());
+      Column[] columns = new Column[numCol];
+      for (int i = 0; i < numCol; ++i) {
+         columns[i] = new Column(rsmd.getColumnName(i + 1), kindOf(rsmd.getColumnType(i + 1)), capacity);
+      }
+
+      RealCache reals = null;
+      for (Column c : columns) {
+         if (c.kind == REAL && reals == null) {
+            reals = new RealCache();
+         }
+      }
+
+      ResultTable table = new ResultTable(columns);
+      while (rs.next()) {
+         int row = table._rowCount;
+         if (row == capacity) {
+            capacity *= 2;
+            for (Column c : columns) {
+               c.grow(capacity);
+            }
+         }
+         for (int i = 0; i < numCol; ++i) {
+            Column c = columns[i];
+            switch (c.kind) {
+               case INT:
+                  c.ints[row] = rs.getInt(i + 1);
+                  break;
+               case LONG:
+                  c.longs[row] = rs.getLong(i + 1);
+                  break;
+               case DOUBLE:
+                  c.doubles[row] = rs.getDouble(i + 1);
+                  break;
+               case REAL:
+                  c.doubles[row] = reals.toDouble(rs.getFloat(i + 1));
+                  break;
+               case TIMESTAMP:
+                  Timestamp ts = rs.getTimestamp(i + 1);
+                  c.longs[row] = ts == null ? 0L : ts.getTime();
+                  break;
+               default:
+                  String s = rs.getString(i + 1);
+                  c.ints[row] = s == null ? -1 : table.intern(s);
+                  break;
+            }
+            c.nulls[row] = rs.wasNull();
+         }
+         ++table._rowCount;
+      }
+      return table;
+   }//end read
+
+   /*
+    * Widens reals to the double of their shortest decimal text, so a price
+    * stored as 9.99 reads as 9.99 and not 9.989999771118164, which a plain
+    * cast gives. A result holds few distinct reals (prices, review scores),
+    * so each conversion is kept in a small direct-mapped cache and only a
+    * value missing from it is formatted and parsed.
+    */
+   private static class RealCache {
+      private static final int SIZE = 256;
+      private final int[] _bits = new int[SIZE];
+      private final double[] _values = new double[SIZE];
+      private final boolean[] _used = new boolean[SIZE];
+
+      double toDouble(float f) {
+         int bits = Float.floatToRawIntBits(f);
+         int slot = (bits ^ (bits >>> 16)) & (SIZE - 1);
+         if (!this._used[slot] || this._bits[slot] != bits) {
+            this._bits[slot] = bits;
+            this._values[slot] = Double.parseDouble(Float.toString(f));
+            this._used[slot] = true;
+         }
+         return this._values[slot];
+      }
+   }//end RealCache
+
+   private int intern(String s) {
+      Integer index = this._stringIndex.get(s);
+      if (index == null) {
+         index = this._strings.size();
+         this._strings.add(s);
+         this._stringIndex.put(s, index);
+      }
+      return index;
+   }
+
+   /**
+    * @return the number of rows
+    */
+   public int getRowCount() {
+      return this._rowCount;
+   }
+
+   /**
+    * @return the number of columns
+    */
+   public int getColumnCount() {
+      return this._columns.length;
+   }
+
+   /**
+    * @param name a column label, matched case-insensitively
+    * @return the column's index, starting at 0
+    * @throws java.lang.IllegalArgumentException when there is no such column
+    */
+   public int findColumn(String name) {
+      for (int i = 0; i < this._columns.length; ++i) {
+         if (this._columns[i].name.equalsIgnoreCase(name)) {
+            return i;
+         }
+      }
+      throw new IllegalArgumentException("No column " + name);
+   }
+
+   /**
+    * @return true if the value is SQL NULL
+    */
+   public boolean isNull(int row, int col) {
+      return this._columns[col].nulls[row];
+   }
+
+   /**
+    * @return the value of a numeric column; 0 for NULL
+    */
+   public int getInt(int row, int col) {
+      Column c = this._columns[col];
+      switch (c.kind) {
+         case INT:    return c.ints[row];
+         case LONG:   return (int) c.longs[row];
+         case DOUBLE:
+         case REAL:   return (int) c.doubles[row];
+         case TEXT:   return c.nulls[row] ? 0 : Integer.parseInt(this._strings.get(c.ints[row]).trim());
+         default:     throw new IllegalStateException("Column " + c.name + " is not numeric");
+      }
+   }
+
+   /**
+    * @return the value of a numeric or timestamp column; 0 for NULL
+    */
+   public long getLong(int row, int col) {
+      Column c = this._columns[col];
+      switch (c.kind) {
+         case INT:       return c.ints[row];
+         case LONG:      return c.longs[row];
+         case TIMESTAMP: return c.longs[row];
+         case DOUBLE:
+         case REAL:      return (long) c.doubles[row];
+         case TEXT:      return c.nulls[row] ? 0L : Long.parseLong(this._strings.get(c.ints[row]).trim());
+         default:        throw new IllegalStateException("Column " + c.name + " is not numeric");
+      }
+   }
+
+   /**
+    * @return the value of a numeric column; 0 for NULL
+    */
+   public double getDouble(int row, int col) {
+      Column c = this._columns[col];
+      switch (c.kind) {
+         case INT:    return c.ints[row];
+         case LONG:   return c.longs[row];
+         case DOUBLE:
+         case REAL:   return c.doubles[row];
+         case TEXT:   return c.nulls[row] ? 0.0 : Double.parseDouble(this._strings.get(c.ints[row]).trim());
+         default:     throw new IllegalStateException("Column " + c.name + " is not numeric");
+      }
+   }
+
+   /**
+    * @return the value of a timestamp column as epoch milliseconds; 0 for NULL
+    */
+   public long getTimestampMillis(int row, int col) {
+      Column c = this._columns[col];
+      if (c.kind != TIMESTAMP) {
+         throw new IllegalStateException("Column " + c.name + " is not a timestamp");
+      }
+      return c.longs[row];
+   }
+
+   /**
+    * @return the value of a timestamp column, or null
+    */
+   public Timestamp getTimestamp(int row, int col) {
+      return isNull(row, col) ? null : new Timestamp(getTimestampMillis(row, col));
+   }
+
+   /**
+    * Returns any value as text. Text columns return the shared string;
+    * other columns are formatted on each call.
+    *
+    * @return the value as text, or null
+    */
+   public String getString(int row, int col) {
+      Column c = this._columns[col];
+      if (c.nulls[row]) {
+         return null;
+      }
+      switch (c.kind) {
+         case INT:       return String.valueOf(c.ints[row]);
+         case LONG:      return String.valueOf(c.longs[row]);
+         case DOUBLE:
+         case REAL:      return String.valueOf(c.doubles[row]);
+         case TIMESTAMP: return new Timestamp(c.longs[row]).toString();
+         default:        return this._strings.get(c.ints[row]);
+      }
+   }//end getString
+
+   /**
+    * Maps every row to an object.
+    *
+    * @param mapper turns one row into an object
+    * @return the objects, in row order
+    */
+   public <T> List<T> map(RowMapper<T> mapper) {
+      List<T> result = new ArrayList<T>(this._rowCount);
+      for (int row = 0; row < this._rowCount; ++row) {
+         result.add(mapper.map(this, row));
+      }
+      return result;
+   }//end map
+
+}//end ResultTable
@@ -0,0 +1,182 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the SalesRollup table, which holds order count, items
+ * sold and revenue per store, item and hour, up to date. An order is a
+ * sale once it is complete, so the orders that reach complete are queued
+ * in memory and a background thread adds their lines to the table at a
+ * fixed interval with one batch of upserts; completing an order never
+ * waits for the rollup. Lines are priced at the current menu price, as in
+ * the backfill of migration 7.
+ *
+ * The upsert adds to the stored totals, so several JVMs can share the
+ * table; each order is completed, and so counted, by one of them. Orders
+ * still queued when the JVM dies are not counted. A failed flush is retried
+ * when the error is transient, at most MAX_ATTEMPTS times; orders whose
+ * rollup can never be written are reported and dropped.
+ *
+ */
+public class SalesRollup {
+
+   private static final String UPSERT =
+      "INSERT INTO SalesRollup (storeID, itemName, hourBucket, orderCount, quantity, revenue) " +
+      "SELECT fo.storeID, iio.itemName, date_trunc('hour', fo.orderTimestamp), 1, iio.quantity, " +
+      "iio.quantity * COALESCE(i.price, 0) " +
+      "FROM FoodOrder fo JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
+      "LEFT JOIN Items i ON iio.itemName = i.itemName " +
+      "WHERE fo.orderID = ? AND TRIM(fo.orderStatus) = 'complete' " +
+      "ON CONFLICT (storeID, itemName, hourBucket) DO UPDATE SET " +
+      "orderCount = SalesRollup.orderCount + EXCLUDED.orderCount, " +
+      "quantity = SalesRollup.quantity + EXCLUDED.quantity, " +
+      "revenue = SalesRollup.revenue + EXCLUDED.revenue;";
+
+   static final int MAX_ATTEMPTS = 5;
+
+   // a completed order waiting to be counted
+   private static class Completed {
+      final int orderID;
+      int attempts = 0;
+
+      Completed(int orderID) {
+         this.orderID = orderID;
+      }
+   }//end Completed
+
+   private final PizzaStore _esql;
+   private final ConcurrentLinkedQueue<Completed> _queue = new ConcurrentLinkedQueue<Completed>();
+   private ScheduledExecutorService _flusher = null;
+
+   /**
+    * Creates a new rollup writer and starts its background flush.
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    * @param flushMillis how often queued orders are written
+    */
+   public SalesRollup(PizzaStore esql, long flushMillis) {
+      this._esql = esql;
+      this._flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "sales-rollup");
+         t.setDaemon(true);
+         return t;
+      });
+      this._flusher.scheduleWithFixedDelay(() -> {
+         try {
+            flush();
+         } catch (SQLException e) {
+            SessionIO.console().println("Unable to write sales rollups: " + e.getMessage());
+         }
+      }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+   }//end SalesRollup
+
+   /**
+    * Queues an order that this JVM committed as complete or moved to
+    * complete.
+    *
+    * @param orderID the completed order
+    */
+   public void orderCompleted(int orderID) {
+      this._queue.add(new Completed(orderID));
+   }
+
+   /**
+    * @return true when retrying may succeed: the connection was lost or
+    *         could not be borrowed, the transaction hit a serialization
+    *         failure or deadlock, or the server was short of resources or
+    *         shutting down
+    */
+   static boolean isTransient(SQLException e) {
+      String state = e.getSQLState();
+      if (state == null) {
+         // raised by ConnectionPool, e.g. a borrow timeout
+         return true;
+      }
+      return state.startsWith("08") || state.startsWith("40") || state.startsWith("53") ||
+             state.startsWith("57") || state.equals("55P03");
+   }
+
+   /**
+    * Writes everything queued so far in one transaction. When the write
+    * fails with a transient error the orders are queued again for the next
+    * flush; otherwise, or after MAX_ATTEMPTS, they are dropped.
+    *
+    * @throws java.sql.SQLException when the rollups cannot be written
+    */
+   public synchronized void flush() throws SQLException {
+      Map<Integer, Completed> pending = new LinkedHashMap<Integer, Completed>();
+      Completed completed;
+      while ((completed = this._queue.poll()) != null) {
+         pending.putIfAbsent(completed.orderID, completed);
+      }
+      if (pending.isEmpty()) {
+         return;
+      }
+
+      long start = System.nanoTime();
+      ConnectionPool pool = this._esql.getPool();
+      Connection conn = null;
+      try {
+         conn = pool.borrow();
+         conn.setAutoCommit(false);
+         PreparedStatement upsert = pool.statementCache(conn).prepare(UPSERT);
+         try {
+            for (Completed c : pending.values()) {
+               upsert.setInt(1, c.orderID);
+               upsert.addBatch();
+            }
+            upsert.executeBatch();
+         } finally {
+            upsert.clearBatch();
+         }
+         conn.commit();
+         QueryMetrics.record("salesRollup.flush", start, pending.size());
+      } catch (SQLException e) {
+         QueryMetrics.error("salesRollup.flush", start);
+         boolean retry = isTransient(e);
+         List<Integer> dropped = new ArrayList<Integer>();
+         for (Completed c : pending.values()) {
+            if (retry && ++c.attempts < MAX_ATTEMPTS) {
+               this._queue.add(c);
+            } else {
+               dropped.add(c.orderID);
+            }
+         }
+         if (!dropped.isEmpty()) {
+            SessionIO.console().println("Sales rollups of orders " + dropped + " were dropped and must be " +
+                                        "counted again: " + e.getMessage());
+         }
+         throw e;
+      } finally {
+         // release() rolls back anything left uncommitted and restores autocommit
+         pool.release(conn);
+      }
+   }//end flush
+
+   /**
+    * Stops the background flush and writes what is still queued.
+    */
+   public void close() {
+      synchronized (this) {
+         if (this._flusher == null) {
+            return;
+         }
+         this._flusher.shutdown();
+         this._flusher = null;
+      }
+      try {
+         flush();
+      } catch (SQLException e) {
+         System.err.println("Unable to write sales rollups: " + e.getMessage());
+      }
+   }//end close
+
+}//end SalesRollup
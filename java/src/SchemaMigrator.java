@@ -0,0 +1,222 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class brings the database schema up to date. Every change to the
+ * schema is a numbered migration; the versions already applied are kept in
+ * the schema_version table and only the missing ones are run, each in its
+ * own transaction. An advisory lock keeps two JVMs starting at the same
+ * time from applying the same migration twice.
+ *
+ * Migrations are never edited once released; a change to the schema is a
+ * new migration at the end of the list.
+ *
+ */
+public class SchemaMigrator {
+
+   /**
+    * One numbered schema change.
+    */
+   public static class Migration {
+      public final int version;
+      public final String description;
+      public final List<String> statements;
+
+      Migration(int version, String description, String... statements) {
+         this.version = version;
+         this.description = description;
+         this.statements = Arrays.asList(statements);
+      }
+   }//end Migration
+
+   // adds a foreign key unless the table already references the target, e.g.
+   // when the table was created by the course scripts with an unnamed constraint
+   private static String foreignKey(String table, String name, String columns, String target, String onUpdate) {
+      return "DO $$ BEGIN " +
+             "IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE contype = 'f' " +
+             "AND conrelid = '" + table.toLowerCase() + "'::regclass " +
+             "AND confrelid = '" + target.toLowerCase() + "'::regclass) THEN " +
+             "ALTER TABLE " + table + " ADD CONSTRAINT " + name + " FOREIGN KEY (" + columns + ") " +
+             "REFERENCES " + target + onUpdate + "; " +
+             "END IF; END $$;";
+   }
+
+   // every migration, in version order
+   public static final List<Migration> MIGRATIONS = Arrays.asList(
+      new Migration(1, "create tables",
+         "CREATE TABLE IF NOT EXISTS Users (login VARCHAR(50) PRIMARY KEY, password VARCHAR(30) NOT NULL, " +
+            "role VARCHAR(20) NOT NULL, favoriteItems VARCHAR(400), phoneNum VARCHAR(20));",
+         "CREATE TABLE IF NOT EXISTS Store (storeID INTEGER PRIMARY KEY, address VARCHAR(200) NOT NULL, " +
+            "city VARCHAR(100) NOT NULL, state VARCHAR(50) NOT NULL, isOpen VARCHAR(10) NOT NULL, reviewScore REAL);",
+         "CREATE TABLE IF NOT EXISTS Items (itemName VARCHAR(100) PRIMARY KEY, ingredients VARCHAR(400) NOT NULL, " +
+            "typeOfItem VARCHAR(40) NOT NULL, price REAL NOT NULL, description VARCHAR(400));",
+         "CREATE TABLE IF NOT EXISTS FoodOrder (orderID INTEGER PRIMARY KEY, login VARCHAR(50) NOT NULL, " +
+            "storeID INTEGER NOT NULL, totalPrice REAL NOT NULL, orderTimestamp TIMESTAMP NOT NULL, " +
+            "orderStatus VARCHAR(50));",
+         "CREATE TABLE IF NOT EXISTS ItemsInOrder (orderID INTEGER NOT NULL, itemName VARCHAR(100) NOT NULL, " +
+            "quantity INTEGER NOT NULL, PRIMARY KEY (orderID, itemName));"),
+
+      // a login can be renamed by a manager, so its references follow it
+      new Migration(2, "foreign keys",
+         foreignKey("FoodOrder", "foodorder_login_fkey", "login", "Users", " ON UPDATE CASCADE"),
+         foreignKey("FoodOrder", "foodorder_storeid_fkey", "storeID", "Store", ""),
+         foreignKey("ItemsInOrder", "itemsinorder_orderid_fkey", "orderID", "FoodOrder", ""),
+         foreignKey("ItemsInOrder", "itemsinorder_itemname_fkey", "itemName", "Items", " ON UPDATE CASCADE")),
+
+      // the OrderHistory queries: viewRecentOrders and the keyset pages of
+      // viewAllOrders, for one customer or for everyone
+      new Migration(3, "order history indexes",
+         "CREATE INDEX IF NOT EXISTS foodorder_login_timestamp_idx " +
+            "ON FoodOrder (login, orderTimestamp DESC, orderID DESC);",
+         "CREATE INDEX IF NOT EXISTS foodorder_timestamp_idx ON FoodOrder (orderTimestamp DESC, orderID DESC);"),
+
+      new Migration(4, "foreign key lookup indexes",
+         "CREATE INDEX IF NOT EXISTS foodorder_storeid_idx ON FoodOrder (storeID);",
+         "CREATE INDEX IF NOT EXISTS itemsinorder_itemname_idx ON ItemsInOrder (itemName);"),
+
+      // updateOrderStatus lists the orders that are not complete yet, which
+      // are a small and shrinking share of the table
+      new Migration(5, "open order index",
+         "CREATE INDEX IF NOT EXISTS foodorder_open_idx ON FoodOrder (orderID) WHERE orderStatus <> 'complete';"),
+
+      // updateProfile lists users by WHERE TRIM(role) = ? ORDER BY login
+      new Migration(6, "user role index",
+         "CREATE INDEX IF NOT EXISTS users_role_idx ON Users ((TRIM(role)), login);"),
+
+      // maintained by SalesRollup from here on; the orders already complete
+      // are counted once, priced at the current menu price
+      new Migration(7, "sales rollups",
+         "CREATE TABLE IF NOT EXISTS SalesRollup (storeID INTEGER NOT NULL, itemName VARCHAR(100) NOT NULL, " +
+            "hourBucket TIMESTAMP NOT NULL, orderCount INTEGER NOT NULL, quantity INTEGER NOT NULL, " +
+            "revenue DOUBLE PRECISION NOT NULL, PRIMARY KEY (storeID, itemName, hourBucket));",
+         "CREATE INDEX IF NOT EXISTS salesrollup_hour_idx ON SalesRollup (hourBucket);",
+         "INSERT INTO SalesRollup (storeID, itemName, hourBucket, orderCount, quantity, revenue) " +
+            "SELECT fo.storeID, iio.itemName, date_trunc('hour', fo.orderTimestamp), COUNT(*), " +
+            "SUM(iio.quantity), SUM(iio.quantity * COALESCE(i.price, 0)) " +
+            "FROM FoodOrder fo JOIN ItemsInOrder iio ON fo.orderID = iio.orderID " +
+            "LEFT JOIN Items i ON iio.itemName = i.itemName " +
+            "WHERE TRIM(fo.orderStatus) = 'complete' " +
+            "GROUP BY fo.storeID, iio.itemName, date_trunc('hour', fo.orderTimestamp) " +
+            "ON CONFLICT DO NOTHING;"),
+
+      // the statuses of OrderStatus; NOT VALID leaves rows written before it alone
+      new Migration(8, "order status check",
+         "ALTER TABLE FoodOrder ADD CONSTRAINT foodorder_status_check CHECK (orderStatus IS NULL OR " +
+            "TRIM(orderStatus) IN ('incomplete', 'in-progress', 'out-for-delivery', 'complete')) NOT VALID;"),
+
+      // lets StoreDirectory re-read only the stores changed since its last
+      // refresh; clock_timestamp() rather than now() so a long transaction
+      // does not stamp its rows with its start time
+      new Migration(9, "store change stamp",
+         "ALTER TABLE Store ADD COLUMN IF NOT EXISTS updatedAt TIMESTAMP NOT NULL DEFAULT clock_timestamp();",
+         "CREATE OR REPLACE FUNCTION store_touch() RETURNS trigger AS $$ " +
+            "BEGIN NEW.updatedAt := clock_timestamp(); RETURN NEW; END $$ LANGUAGE plpgsql;",
+         "DROP TRIGGER IF EXISTS store_touch ON Store;",
+         "CREATE TRIGGER store_touch BEFORE INSERT OR UPDATE ON Store " +
+            "FOR EACH ROW EXECUTE PROCEDURE store_touch();",
+         "CREATE INDEX IF NOT EXISTS store_updatedat_idx ON Store (updatedAt);"));
+
+   // any constant works, as long as no other code takes the same advisory lock
+   private static final long LOCK_KEY = 0x50697a7a61L;
+
+   /**
+    * Applies every migration that is not recorded in schema_version yet.
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    * @return the number of migrations applied
+    * @throws java.sql.SQLException when a migration fails; it is rolled back
+    *         and the later migrations are not attempted
+    */
+   public static int migrate(PizzaStore esql) throws SQLException {
+      ConnectionPool pool = esql.getPool();
+      Connection conn = null;
+      int applied = 0;
+      try {
+         conn = pool.borrow();
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, " +
+                               "description VARCHAR(200) NOT NULL, appliedAt TIMESTAMP NOT NULL DEFAULT now(), " +
+                               "durationMs BIGINT NOT NULL);");
+         } finally {
+            stmt.close();
+         }
+
+         int current = currentVersion(conn);
+         for (Migration migration : MIGRATIONS) {
+            if (migration.version > current && apply(conn, migration)) {
+               ++applied;
+            }
+         }
+      } finally {
+         pool.release(conn);
+      }
+      return applied;
+   }//end migrate
+
+   private static int currentVersion(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version;");
+         rs.next();
+         return rs.getInt(1);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /*
+    * Runs one migration and records it, unless another JVM got there first.
+    */
+   private static boolean apply(Connection conn, Migration migration) throws SQLException {
+      long start = System.nanoTime();
+      conn.setAutoCommit(false);
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            // held until commit or rollback
+            stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ");");
+            ResultSet rs = stmt.executeQuery("SELECT 1 FROM schema_version WHERE version = " + migration.version + ";");
+            if (rs.next()) {
+               conn.rollback();
+               return false;
+            }
+            for (String sql : migration.statements) {
+               stmt.execute(sql);
+            }
+         } finally {
+            stmt.close();
+         }
+
+         long millis = (System.nanoTime() - start) / 1000000L;
+         PreparedStatement record = conn.prepareStatement(
+            "INSERT INTO schema_version (version, description, durationMs) VALUES (?, ?, ?);");
+         try {
+            record.setInt(1, migration.version);
+            record.setString(2, migration.description);
+            record.setLong(3, millis);
+            record.executeUpdate();
+         } finally {
+            record.close();
+         }
+         conn.commit();
+         QueryMetrics.record("schema.migrate", start, 1);
+         System.out.println("Applied migration " + migration.version + " (" + migration.description + ") in " +
+                            millis + " ms");
+         return true;
+      } catch (SQLException e) {
+         conn.rollback();
+         QueryMetrics.error("schema.migrate", start);
+         throw new SQLException("Migration " + migration.version + " (" + migration.description + ") failed: " +
+                                e.getMessage(), e.getSQLState(), e);
+      } finally {
+         conn.setAutoCommit(true);
+      }
+   }//end apply
+
+}//end SchemaMigrator
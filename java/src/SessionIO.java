@@ -0,0 +1,311 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Locale;
+
+/**
+ * This class lets the menu handlers, which read from PizzaStore.in and
+ * write to System.out, serve several sessions in one JVM. Each thread can
+ * bind its own reader and output streams; threads without a binding use
+ * the console, so the interactive app behaves exactly as before.
+ *
+ * System.out and System.err only pass each call on to the calling thread's
+ * own buffered PrintStream, so sessions never wait on each other's stream
+ * locks or sockets. A session's output is flushed when it reads its next
+ * line, i.e. once the prompt is printed, and when it is unbound.
+ *
+ */
+public class SessionIO {
+
+   // console streams captured before install() replaces System.out/err
+   private static final BufferedReader CONSOLE_IN = new BufferedReader(new InputStreamReader(System.in));
+   private static final PrintStream CONSOLE_OUT = System.out;
+   private static final PrintStream CONSOLE_ERR = System.err;
+
+   private static final ThreadLocal<BufferedReader> _in = new ThreadLocal<BufferedReader>();
+   private static final ThreadLocal<PrintStream> _out = new ThreadLocal<PrintStream>();
+   private static final ThreadLocal<PrintStream> _err = new ThreadLocal<PrintStream>();
+
+   private static boolean _installed = false;
+
+   /*
+    * A BufferedReader that forwards to the reader bound to the calling thread.
+    */
+   private static class SessionReader extends BufferedReader {
+      SessionReader() {
+         super(new StringReader(""));
+      }
+
+      private BufferedReader target() {
+         BufferedReader in = _in.get();
+         if (in == null) {
+            return CONSOLE_IN;
+         }
+         // show the prompt before waiting for the answer
+         _out.get().flush();
+         return in;
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         return target().readLine();
+      }
+
+      @Override
+      public int read() throws IOException {
+         return target().read();
+      }
+
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+         return target().read(cbuf, off, len);
+      }
+
+      @Override
+      public boolean ready() throws IOException {
+         return target().ready();
+      }
+
+      @Override
+      public void close() {
+         // the console and session readers are closed by their owners
+      }
+   }//end SessionReader
+
+   /*
+    * A PrintStream that forwards every call to the stream bound to the
+    * calling thread. PrintStream locks itself in print and println, so
+    * every one of them is overridden; otherwise all sessions would queue
+    * on this one shared stream.
+    */
+   private static class SessionPrintStream extends PrintStream {
+      private final ThreadLocal<PrintStream> _binding;
+      private final PrintStream _fallback;
+
+      SessionPrintStream(ThreadLocal<PrintStream> binding, PrintStream fallback) {
+         super(fallback);
+         this._binding = binding;
+         this._fallback = fallback;
+      }
+
+      private PrintStream target() {
+         PrintStream out = this._binding.get();
+         return out == null ? this._fallback : out;
+      }
+
+      @Override
+      public void write(int b) {
+         target().write(b);
+      }
+
+      @Override
+      public void write(byte[] buf, int off, int len) {
+         target().write(buf, off, len);
+      }
+
+      @Override
+      public void flush() {
+         target().flush();
+      }
+
+      @Override
+      public boolean checkError() {
+         return target().checkError();
+      }
+
+      @Override
+      public void print(boolean b) {
+         target().print(b);
+      }
+
+      @Override
+      public void print(char c) {
+         target().print(c);
+      }
+
+      @Override
+      public void print(int i) {
+         target().print(i);
+      }
+
+      @Override
+      public void print(long l) {
+         target().print(l);
+      }
+
+      @Override
+      public void print(float f) {
+         target().print(f);
+      }
+
+      @Override
+      public void print(double d) {
+         target().print(d);
+      }
+
+      @Override
+      public void print(char[] s) {
+         target().print(s);
+      }
+
+      @Override
+      public void print(String s) {
+         target().print(s);
+      }
+
+      @Override
+      public void print(Object obj) {
+         target().print(obj);
+      }
+
+      @Override
+      public void println() {
+         target().println();
+      }
+
+      @Override
+      public void println(boolean x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(char x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(int x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(long x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(float x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(double x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(char[] x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(String x) {
+         target().println(x);
+      }
+
+      @Override
+      public void println(Object x) {
+         target().println(x);
+      }
+
+      @Override
+      public PrintStream format(String format, Object... args) {
+         target().format(format, args);
+         return this;
+      }
+
+      @Override
+      public PrintStream format(Locale l, String format, Object... args) {
+         target().format(l, format, args);
+         return this;
+      }
+
+      @Override
+      public PrintStream append(CharSequence csq) {
+         target().append(csq);
+         return this;
+      }
+
+      @Override
+      public PrintStream append(CharSequence csq, int start, int end) {
+         target().append(csq, start, end);
+         return this;
+      }
+
+      @Override
+      public PrintStream append(char c) {
+         target().append(c);
+         return this;
+      }
+
+      @Override
+      public void close() {
+         // the console and session streams are closed by their owners
+      }
+   }//end SessionPrintStream
+
+   /**
+    * @return a reader that reads from the calling thread's session input
+    */
+   public static BufferedReader reader() {
+      return new SessionReader();
+   }
+
+   /**
+    * Replaces System.out and System.err with streams that follow the
+    * calling thread's binding. Must be called before sessions are bound.
+    */
+   public static synchronized void install() {
+      if (_installed) {
+         return;
+      }
+      System.setOut(new SessionPrintStream(_out, CONSOLE_OUT));
+      System.setErr(new SessionPrintStream(_err, CONSOLE_ERR));
+      _installed = true;
+   }//end install
+
+   /**
+    * Binds session streams to the calling thread. Output is buffered until
+    * the session reads, or is unbound.
+    *
+    * @param in where PizzaStore.in reads from
+    * @param out where System.out writes to
+    * @param err where System.err writes to; may be the same stream as out
+    */
+   public static void bind(BufferedReader in, OutputStream out, OutputStream err) {
+      PrintStream sessionOut = new PrintStream(new BufferedOutputStream(out), false);
+      _in.set(in);
+      _out.set(sessionOut);
+      _err.set(err == out ? sessionOut : new PrintStream(new BufferedOutputStream(err), false));
+   }
+
+   /**
+    * Flushes the calling thread's session output and removes its binding,
+    * so it uses the console again.
+    */
+   public static void unbind() {
+      PrintStream out = _out.get();
+      PrintStream err = _err.get();
+      if (out != null) {
+         out.flush();
+      }
+      if (err != null) {
+         err.flush();
+      }
+      _in.remove();
+      _out.remove();
+      _err.remove();
+   }
+
+   /**
+    * @return the real console output, regardless of any binding
+    */
+   public static PrintStream console() {
+      return CONSOLE_OUT;
+   }
+
+}//end SessionIO
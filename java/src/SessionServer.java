@@ -0,0 +1,157 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves the PizzaStore menus to many users from one JVM. It
+ * accepts telnet-style connections on a local port and runs each session
+ * on its own thread with its own input and output, bound through
+ * SessionIO. All sessions share one PizzaStore and its connection pool; a
+ * session only holds a database connection while a query runs, so idle
+ * sessions cost a thread and a socket.
+ *
+ * On Java 21 and later every session gets a virtual thread. Older JVMs fall
+ * back to a cached pool of platform threads. Usage:
+ *
+ *    java SessionServer dbname port user [listenPort]
+ *
+ * and connect with: telnet localhost listenPort
+ *
+ */
+public class SessionServer {
+
+   /*
+    * Thrown by every read once the client disconnects. A handler may catch
+    * it and return, but the menu loops only retry on bad input, so the
+    * next read ends the session.
+    */
+   private static class SessionClosed extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      SessionClosed() {
+         super("session closed", null, false, false);
+      }
+   }
+
+   // reads the client's lines and ends the session at end of stream
+   private static class ClientReader extends BufferedReader {
+      ClientReader(Reader in) {
+         super(in);
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         String line = super.readLine();
+         if (line == null) {
+            throw new SessionClosed();
+         }
+         return line;
+      }
+   }//end ClientReader
+
+   private final PizzaStore _esql;
+   private final ExecutorService _sessions;
+   private final AtomicInteger _active = new AtomicInteger();
+
+   /**
+    * Creates a new server over a shared PizzaStore.
+    *
+    * @param esql the PizzaStore every session runs against
+    */
+   public SessionServer(PizzaStore esql) {
+      this._esql = esql;
+      this._sessions = newSessionExecutor();
+   }//end SessionServer
+
+   /*
+    * One virtual thread per session when the JVM supports it, otherwise a
+    * cached pool of platform threads.
+    */
+   private static ExecutorService newSessionExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * Accepts sessions until the server socket is closed.
+    *
+    * @param listenPort the local port to listen on
+    * @throws java.io.IOException when the port cannot be opened
+    */
+   public void serve(int listenPort) throws IOException {
+      SessionIO.install();
+      ServerSocket server = new ServerSocket(listenPort, 512, InetAddress.getLoopbackAddress());
+      SessionIO.console().println("Serving sessions on localhost:" + listenPort);
+      try {
+         while (true) {
+            final Socket client = server.accept();
+            this._sessions.execute(() -> runSession(client));
+         }
+      } finally {
+         server.close();
+         this._sessions.shutdown();
+      }
+   }//end serve
+
+   private void runSession(Socket client) {
+      int active = this._active.incrementAndGet();
+      SessionIO.console().println("Session opened from " + client.getRemoteSocketAddress() +
+                                  " (" + active + " active)");
+      try {
+         OutputStream out = client.getOutputStream();
+         SessionIO.bind(new ClientReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8)),
+                        out, out);
+         PizzaStore.Greeting();
+         PizzaStore.runMenu(this._esql);
+         System.out.println("Bye !");
+      } catch (SessionClosed e) {
+         // client went away
+      } catch (IOException e) {
+         SessionIO.console().println("Session error: " + e.getMessage());
+      } finally {
+         UserSession.end();
+         SessionIO.unbind();
+         try {
+            client.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+         active = this._active.decrementAndGet();
+         SessionIO.console().println("Session closed (" + active + " active)");
+      }
+   }//end runSession
+
+   /**
+    * The session server entry point.
+    *
+    * @param args dbname port user and optionally the port to listen on
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java SessionServer <dbname> <port> <user> [listenPort]");
+         return;
+      }
+      int listenPort = args.length > 3 ? Integer.parseInt(args[3]) : 5166;
+
+      Class.forName("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         new SessionServer(esql).serve(listenPort);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end SessionServer
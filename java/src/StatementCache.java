@@ -0,0 +1,95 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a least-recently-used cache of PreparedStatements for
+ * a single pooled connection. A connection is only ever used by the thread
+ * that borrowed it, so the cache itself is not synchronized; the hit/miss
+ * counters are shared by every cache in the JVM.
+ *
+ */
+public class StatementCache {
+
+   // hit/miss counters across all connections
+   private static final AtomicLong _hits = new AtomicLong();
+   private static final AtomicLong _misses = new AtomicLong();
+   private static final AtomicLong _evictions = new AtomicLong();
+
+   private final Connection _connection;
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   /**
+    * Creates a new statement cache for the given connection.
+    *
+    * @param conn the connection the statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection conn, final int capacity) {
+      this._connection = conn;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(capacity * 2, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > capacity) {
+               _evictions.incrementAndGet();
+               closeQuietly(eldest.getValue());
+               return true;
+            }
+            return false;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns a cached PreparedStatement for the SQL template, preparing it
+    * on the connection on a miss. Callers must not close the statement.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @return the prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null && !stmt.isClosed()) {
+         _hits.incrementAndGet();
+         return stmt;
+      }
+      _misses.incrementAndGet();
+      stmt = this._connection.prepareStatement(sql);
+      this._statements.put(sql, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      for (PreparedStatement stmt : this._statements.values()) {
+         closeQuietly(stmt);
+      }
+      this._statements.clear();
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * @return a one-line summary of the cache hit/miss counters
+    */
+   public static String getStats() {
+      long hits = _hits.get();
+      long total = hits + _misses.get();
+      return String.format("statement cache: hits=%d misses=%d evictions=%d hitRate=%.1f%%",
+                           hits, _misses.get(), _evictions.get(),
+                           total == 0 ? 0.0 : 100.0 * hits / total);
+   }
+
+}//end StatementCache
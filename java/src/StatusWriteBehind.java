@@ -0,0 +1,372 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class buffers order status changes in memory and writes them in
+ * group-committed batches, for busy periods when one autocommitted UPDATE
+ * (and WAL flush) per change is too slow. A change is acknowledged once it
+ * is appended and forced to a local spool file; changes to the same order
+ * are coalesced so only its latest status is written. A background thread
+ * flushes the buffer every flushMillis, or sooner once batchSize orders
+ * are waiting, in one transaction.
+ *
+ * Each flush moves the spool aside to a batch file that is deleted only
+ * after its transaction commits. On startup the batch files and the spool
+ * left by a crashed JVM are read back and written first. Every UPDATE
+ * still names the status the order had before its first buffered change,
+ * so writing a batch twice is harmless and a change that lost a race with
+ * another JVM is dropped and reported instead of overwriting it.
+ *
+ */
+public class StatusWriteBehind {
+
+   private static final String SPOOL = "status.spool";
+   private static final String BATCH_PREFIX = "status-";
+   private static final String BATCH_SUFFIX = ".batch";
+
+   // the buffered change of one order
+   private static class Pending {
+      final int orderID;
+      final OrderStatus expected;
+      OrderStatus target;
+
+      Pending(int orderID, OrderStatus expected, OrderStatus target) {
+         this.orderID = orderID;
+         this.expected = expected;
+         this.target = target;
+      }
+   }//end Pending
+
+   private final PizzaStore _esql;
+   private final File _dir;
+   private final int _batchSize;
+   // guards the buffer and the spool; flush() holds it only to take a
+   // snapshot, so changes are accepted while a batch is being written
+   private final Object _lock = new Object();
+   private final LinkedHashMap<Integer, Pending> _pending = new LinkedHashMap<Integer, Pending>();
+   private FileChannel _spool;
+   private long _batchNumber = 0;
+   private ScheduledExecutorService _flusher = null;
+
+   /**
+    * Creates the buffer, writes what a previous JVM left in the spool
+    * directory and starts the background flush.
+    *
+    * @param esql the PizzaStore whose connection pool is used
+    * @param dir the spool directory; one per running JVM
+    * @param flushMillis how often buffered changes are written
+    * @param batchSize how many buffered orders trigger an early flush
+    * @throws java.io.IOException when the spool cannot be opened
+    */
+   public StatusWriteBehind(PizzaStore esql, File dir, long flushMillis, int batchSize) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create spool directory " + dir);
+      }
+      this._esql = esql;
+      this._dir = dir;
+      this._batchSize = batchSize;
+
+      for (File batch : batchFiles()) {
+         recover(batch);
+         this._batchNumber = Math.max(this._batchNumber, batchNumber(batch));
+      }
+      File spool = new File(dir, SPOOL);
+      if (spool.exists()) {
+         recover(spool);
+         moveSpool();
+      }
+      this._spool = openSpool();
+
+      this._flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "status-write-behind");
+         t.setDaemon(true);
+         return t;
+      });
+      this._flusher.scheduleWithFixedDelay(this::flushQuietly, 0, flushMillis, TimeUnit.MILLISECONDS);
+   }//end StatusWriteBehind
+
+   private FileChannel openSpool() throws IOException {
+      return FileChannel.open(new File(this._dir, SPOOL).toPath(),
+                              StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+   }
+
+   // renames the spool to the next batch file
+   private File moveSpool() throws IOException {
+      File batch = new File(this._dir, String.format("%s%08d%s", BATCH_PREFIX, ++this._batchNumber, BATCH_SUFFIX));
+      if (!new File(this._dir, SPOOL).renameTo(batch)) {
+         throw new IOException("Cannot rename the status spool to " + batch);
+      }
+      return batch;
+   }
+
+   private List<File> batchFiles() {
+      File[] files = this._dir.listFiles((d, name) -> name.startsWith(BATCH_PREFIX) && name.endsWith(BATCH_SUFFIX));
+      if (files == null) {
+         return new ArrayList<File>();
+      }
+      Arrays.sort(files);
+      return new ArrayList<File>(Arrays.asList(files));
+   }
+
+   private static long batchNumber(File batch) {
+      String name = batch.getName();
+      try {
+         return Long.parseLong(name.substring(BATCH_PREFIX.length(), name.length() - BATCH_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+         return 0;
+      }
+   }
+
+   /*
+    * Reads a spool or batch file back into the buffer. Lines are
+    * "orderID expected target"; a line cut short by a crash is skipped.
+    */
+   private void recover(File file) throws IOException {
+      try (BufferedReader reader = new BufferedReader(
+              new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 3) {
+               continue;
+            }
+            OrderStatus expected = OrderStatus.parse(parts[1]);
+            OrderStatus target = OrderStatus.parse(parts[2]);
+            if (expected == null || target == null) {
+               continue;
+            }
+            try {
+               merge(new Pending(Integer.parseInt(parts[0]), expected, target));
+            } catch (NumberFormatException e) {
+               // a torn line
+            }
+         }
+      }
+   }//end recover
+
+   // adds a change to the buffer; the order keeps its first expected status
+   private void merge(Pending change) {
+      Pending p = this._pending.get(change.orderID);
+      if (p == null) {
+         this._pending.put(change.orderID, change);
+      } else {
+         p.target = change.target;
+      }
+   }
+
+   /**
+    * Buffers a status change. It returns once the change is forced to the
+    * spool; the database is updated by a later flush.
+    *
+    * @param orderID the order to change
+    * @param expected the status the caller saw
+    * @param target the new status
+    * @return false if this JVM already buffered a different status for the
+    *         order, true if the change was accepted
+    * @throws java.io.IOException when the change cannot be spooled; it is not buffered then
+    */
+   public boolean submit(int orderID, OrderStatus expected, OrderStatus target) throws IOException {
+      ScheduledExecutorService flushNow = null;
+      synchronized (this._lock) {
+         if (this._flusher == null) {
+            throw new IOException("Status write-behind is closed");
+         }
+         Pending p = this._pending.get(orderID);
+         if (p != null && p.target != expected) {
+            return false;
+         }
+         ByteBuffer line = ByteBuffer.wrap((orderID + " " + expected.text() + " " + target.text() + "\n")
+                                           .getBytes(StandardCharsets.UTF_8));
+         while (line.hasRemaining()) {
+            this._spool.write(line);
+         }
+         this._spool.force(false);
+         merge(new Pending(orderID, expected, target));
+         if (this._pending.size() >= this._batchSize) {
+            flushNow = this._flusher;
+         }
+      }
+
+      // the menus show the new status right away
+      OpenOrderFeed feed = this._esql.getOpenOrderFeed();
+      try {
+         OpenOrderFeed.OpenOrder order = feed.get(orderID);
+         if (order != null) {
+            feed.update(new OpenOrderFeed.OpenOrder(orderID, order.login, order.storeID, order.totalPrice, target.text()));
+         }
+      } catch (SQLException e) {
+         // the feed catches up when the flush announces the change
+      }
+      if (flushNow != null) {
+         try {
+            flushNow.execute(this::flushQuietly);
+         } catch (RejectedExecutionException e) {
+            // closing; close() flushes
+         }
+      }
+      return true;
+   }//end submit
+
+   /**
+    * @return the number of orders with buffered changes
+    */
+   public int getPending() {
+      synchronized (this._lock) {
+         return this._pending.size();
+      }
+   }
+
+   private void flushQuietly() {
+      try {
+         flush();
+      } catch (IOException | SQLException e) {
+         SessionIO.console().println("Unable to write buffered status changes: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Writes all buffered changes in one transaction. When the transaction
+    * fails the changes are buffered again and their batch files are kept.
+    *
+    * @throws java.io.IOException when the spool cannot be moved aside
+    * @throws java.sql.SQLException when the changes cannot be written
+    */
+   public synchronized void flush() throws IOException, SQLException {
+      List<Pending> batch;
+      List<File> files;
+      synchronized (this._lock) {
+         if (this._pending.isEmpty()) {
+            return;
+         }
+         batch = new ArrayList<Pending>(this._pending.values());
+         this._pending.clear();
+         this._spool.close();
+         moveSpool();
+         this._spool = openSpool();
+         files = batchFiles();
+      }
+
+      long start = System.nanoTime();
+      ConnectionPool pool = this._esql.getPool();
+      OpenOrderFeed feed = this._esql.getOpenOrderFeed();
+      Connection conn = null;
+      int[] counts;
+      try {
+         conn = pool.borrow();
+         conn.setAutoCommit(false);
+         PreparedStatement update = pool.statementCache(conn).prepare(OrderStatus.TRANSITION);
+         try {
+            for (Pending p : batch) {
+               update.setString(1, p.target.text());
+               update.setInt(2, p.orderID);
+               update.setString(3, p.expected.text());
+               update.addBatch();
+            }
+            counts = update.executeBatch();
+         } finally {
+            update.clearBatch();
+         }
+         // delivered to the other JVMs only if the batch commits
+         for (int i = 0; i < batch.size(); ++i) {
+            if (counts[i] != 0) {
+               feed.announce(conn, batch.get(i).orderID);
+            }
+         }
+         conn.commit();
+         QueryMetrics.record("orderStatus.flush", start, batch.size());
+      } catch (SQLException e) {
+         QueryMetrics.error("orderStatus.flush", start);
+         synchronized (this._lock) {
+            // changes buffered since the snapshot are newer
+            for (Pending p : batch) {
+               Pending newer = this._pending.remove(p.orderID);
+               if (newer != null) {
+                  p.target = newer.target;
+               }
+            }
+            LinkedHashMap<Integer, Pending> rest = new LinkedHashMap<Integer, Pending>(this._pending);
+            this._pending.clear();
+            for (Pending p : batch) {
+               this._pending.put(p.orderID, p);
+            }
+            this._pending.putAll(rest);
+         }
+         throw e;
+      } finally {
+         // release() rolls back anything left uncommitted and restores autocommit
+         pool.release(conn);
+      }
+      for (File f : files) {
+         f.delete();
+      }
+
+      EventJournal journal = this._esql.getEventJournal();
+      SalesRollup rollup = this._esql.getSalesRollup();
+      for (int i = 0; i < batch.size(); ++i) {
+         Pending p = batch.get(i);
+         if (counts[i] == 0) {
+            SessionIO.console().println("Status change of order " + p.orderID + " to " + p.target.text() +
+                                        " was dropped: the order was changed by someone else");
+            // undo what submit() showed in the feed
+            try {
+               feed.refresh(p.orderID);
+            } catch (SQLException e) {
+               SessionIO.console().println("Unable to refresh open order " + p.orderID + ": " + e.getMessage());
+            }
+         } else {
+            if (journal != null) {
+               journal.statusChanged(p.orderID, p.expected.text(), p.target.text());
+            }
+            if (p.target == OrderStatus.COMPLETE && rollup != null) {
+               rollup.orderCompleted(p.orderID);
+            }
+         }
+      }
+   }//end flush
+
+   /**
+    * Stops the background flush and writes what is still buffered. What
+    * cannot be written stays in the spool for the next start.
+    */
+   public void close() {
+      synchronized (this._lock) {
+         if (this._flusher == null) {
+            return;
+         }
+         this._flusher.shutdown();
+         this._flusher = null;
+      }
+      try {
+         flush();
+      } catch (IOException | SQLException e) {
+         System.err.println("Unable to write buffered status changes: " + e.getMessage());
+      } finally {
+         synchronized (this._lock) {
+            try {
+               this._spool.close();
+            } catch (IOException e) {
+               // ignored.
+            }
+         }
+      }
+   }//end close
+
+}//end StatusWriteBehind
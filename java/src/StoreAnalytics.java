@@ -0,0 +1,409 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class totals orders and revenue per store and per state over a date
+ * range. The store IDs are split into ranges; the ranges are read in
+ * parallel on a ForkJoinPool, each on its own pooled connection, with the
+ * rows streamed through a cursor rather than buffered. Each range is
+ * totalled in an open-addressing map keyed by the primitive storeID, and
+ * the maps are merged as the fork/join tasks complete. Revenue is the
+ * stored FoodOrder.totalPrice, so no join with ItemsInOrder or Items is
+ * needed.
+ *
+ * Usage: java StoreAnalytics <dbname> <port> <user> [-from yyyy-mm-dd] [-to yyyy-mm-dd] [-partitions N]
+ *
+ */
+public class StoreAnalytics {
+
+   private static final String SELECT =
+      "SELECT storeID, totalPrice FROM FoodOrder " +
+      "WHERE storeID BETWEEN ? AND ? AND orderTimestamp >= ? AND orderTimestamp < ?;";
+
+   /**
+    * Order count and revenue per storeID, in an open-addressing hash map
+    * with linear probing over primitive arrays.
+    */
+   public static class StoreTotals {
+      private static final int EMPTY = Integer.MIN_VALUE;
+
+      private int[] _keys;
+      private long[] _orders;
+      private double[] _revenue;
+      private int _size = 0;
+
+      public StoreTotals() {
+         this(64);
+      }
+
+      private StoreTotals(int capacity) {
+         this._keys = new int[capacity];
+         Arrays.fill(this._keys, EMPTY);
+         this._orders = new long[capacity];
+         this._revenue = new double[capacity];
+      }
+
+      private int slot(int storeID) {
+         int mask = this._keys.length - 1;
+         int h = storeID * 0x9E3779B9;
+         int i = (h ^ (h >>> 16)) & mask;
+         while (this._keys[i] != EMPTY && this._keys[i] != storeID) {
+            i = (i + 1) & mask;
+         }
+         return i;
+      }
+
+      /**
+       * Adds orders and revenue to a store.
+       */
+      public void add(int storeID, long orders, double revenue) {
+         int i = slot(storeID);
+         if (this._keys[i] == EMPTY) {
+            if ((this._size + 1) * 2 > this._keys.length) {
+               grow();
+               i = slot(storeID);
+            }
+            this._keys[i] = storeID;
+            ++this._size;
+         }
+         this._orders[i] += orders;
+         this._revenue[i] += revenue;
+      }//end add
+
+      private void grow() {
+         int[] keys = this._keys;
+         long[] orders = this._orders;
+         double[] revenue = this._revenue;
+         this._keys = new int[keys.length * 2];
+         Arrays.fill(this._keys, EMPTY);
+         this._orders = new long[keys.length * 2];
+         this._revenue = new double[keys.length * 2];
+         for (int j = 0; j < keys.length; ++j) {
+            if (keys[j] != EMPTY) {
+               int i = slot(keys[j]);
+               this._keys[i] = keys[j];
+               this._orders[i] = orders[j];
+               this._revenue[i] = revenue[j];
+            }
+         }
+      }//end grow
+
+      /**
+       * Adds every store of another map to this one.
+       */
+      public void merge(StoreTotals other) {
+         for (int j = 0; j < other._keys.length; ++j) {
+            if (other._keys[j] != EMPTY) {
+               add(other._keys[j], other._orders[j], other._revenue[j]);
+            }
+         }
+      }
+
+      /**
+       * @return the storeIDs present, in ascending order
+       */
+      public int[] storeIDs() {
+         int[] ids = new int[this._size];
+         int n = 0;
+         for (int key : this._keys) {
+            if (key != EMPTY) {
+               ids[n++] = key;
+            }
+         }
+         Arrays.sort(ids);
+         return ids;
+      }
+
+      public long orders(int storeID) {
+         int i = slot(storeID);
+         return this._keys[i] == EMPTY ? 0L : this._orders[i];
+      }
+
+      public double revenue(int storeID) {
+         int i = slot(storeID);
+         return this._keys[i] == EMPTY ? 0.0 : this._revenue[i];
+      }
+
+      public int size() {
+         return this._size;
+      }
+   }//end StoreTotals
+
+   /**
+    * The totals of one run.
+    */
+   public static class Report {
+      public final StoreTotals stores;
+      public final Map<String, StoreTotals> storesByState;
+      public final int partitions;
+      public final long rows;
+      public final long elapsedNanos;
+
+      Report(StoreTotals stores, Map<String, StoreTotals> storesByState, int partitions, long rows, long elapsedNanos) {
+         this.stores = stores;
+         this.storesByState = storesByState;
+         this.partitions = partitions;
+         this.rows = rows;
+         this.elapsedNanos = elapsedNanos;
+      }
+
+      /**
+       * Prints the totals per state, then per store.
+       */
+      public void print(PrintStream out) {
+         out.println("state\tstores\torders\trevenue");
+         double totalRevenue = 0.0;
+         long totalOrders = 0;
+         for (Map.Entry<String, StoreTotals> e : this.storesByState.entrySet()) {
+            long orders = 0;
+            double revenue = 0.0;
+            for (int id : e.getValue().storeIDs()) {
+               orders += e.getValue().orders(id);
+               revenue += e.getValue().revenue(id);
+            }
+            out.println(e.getKey() + "\t" + e.getValue().size() + "\t" + orders + "\t" + String.format("%.2f", revenue));
+            totalOrders += orders;
+            totalRevenue += revenue;
+         }
+         out.println("total\t" + this.stores.size() + "\t" + totalOrders + "\t" + String.format("%.2f", totalRevenue));
+
+         out.println("\nstoreid\torders\trevenue");
+         for (int id : this.stores.storeIDs()) {
+            out.println(id + "\t" + this.stores.orders(id) + "\t" + String.format("%.2f", this.stores.revenue(id)));
+         }
+         out.println(String.format("%n%d orders read in %d partitions in %d ms",
+                                   this.rows, this.partitions, this.elapsedNanos / 1000000));
+      }//end print
+   }//end Report
+
+   // the totals of one storeID range and the number of rows read
+   private static class Partial {
+      final StoreTotals totals;
+      final long rows;
+
+      Partial(StoreTotals totals, long rows) {
+         this.totals = totals;
+         this.rows = rows;
+      }
+   }//end Partial
+
+   /*
+    * Totals the ranges from..to-1 of the split, halving until a task owns
+    * a single range.
+    */
+   private class RangeTask extends RecursiveTask<Partial> {
+      private static final long serialVersionUID = 1L;
+
+      private final int[] _bounds;
+      private final int _from;
+      private final int _to;
+
+      RangeTask(int[] bounds, int from, int to) {
+         this._bounds = bounds;
+         this._from = from;
+         this._to = to;
+      }
+
+      @Override
+      protected Partial compute() {
+         if (this._to - this._from > 1) {
+            int mid = (this._from + this._to) >>> 1;
+            RangeTask right = new RangeTask(this._bounds, mid, this._to);
+            right.fork();
+            Partial left = new RangeTask(this._bounds, this._from, mid).compute();
+            Partial other = right.join();
+            left.totals.merge(other.totals);
+            return new Partial(left.totals, left.rows + other.rows);
+         }
+         try {
+            return read(this._bounds[this._from], this._bounds[this._from + 1] - 1);
+         } catch (SQLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+         }
+      }//end compute
+   }//end RangeTask
+
+   private final PizzaStore _esql;
+   private final Timestamp _from;
+   private final Timestamp _to;
+
+   /**
+    * @param esql the PizzaStore whose connection pool is used
+    * @param from the first day included, or null for no lower bound
+    * @param to the first day excluded, or null for no upper bound
+    */
+   public StoreAnalytics(PizzaStore esql, LocalDate from, LocalDate to) {
+      this._esql = esql;
+      this._from = from == null ? new Timestamp(0L) : Timestamp.valueOf(from.atStartOfDay());
+      this._to = to == null ? Timestamp.valueOf("9999-12-31 00:00:00") : Timestamp.valueOf(to.atStartOfDay());
+   }//end StoreAnalytics
+
+   /*
+    * Streams the orders of one storeID range through a cursor.
+    */
+   private Partial read(int firstStore, int lastStore) throws SQLException {
+      long start = System.nanoTime();
+      ConnectionPool pool = this._esql.getPool();
+      Connection conn = null;
+      StoreTotals totals = new StoreTotals();
+      long rows = 0;
+      try {
+         conn = pool.borrow();
+         // the driver only uses a cursor inside a transaction
+         conn.setAutoCommit(false);
+         PreparedStatement select = pool.statementCache(conn).prepare(SELECT);
+         select.setFetchSize(10000);
+         select.setInt(1, firstStore);
+         select.setInt(2, lastStore);
+         select.setTimestamp(3, this._from);
+         select.setTimestamp(4, this._to);
+         try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+               totals.add(rs.getInt(1), 1, rs.getDouble(2));
+               ++rows;
+            }
+         }
+         conn.commit();
+         QueryMetrics.record("storeAnalytics.partition", start, rows);
+      } catch (SQLException e) {
+         QueryMetrics.error("storeAnalytics.partition", start);
+         throw e;
+      } finally {
+         // release() rolls back anything left uncommitted and restores autocommit
+         pool.release(conn);
+      }
+      return new Partial(totals, rows);
+   }//end read
+
+   /**
+    * @return how many pooled connections the background flushers of a
+    *         PizzaStore may hold at once, which the partitions leave free
+    */
+   static int backgroundConnections(PizzaStore esql) {
+      int reserved = 0;
+      if (esql.getSalesRollup() != null) {
+         ++reserved;
+      }
+      if (esql.getStatusWriteBehind() != null) {
+         ++reserved;
+      }
+      return reserved;
+   }
+
+   /**
+    * Totals the date range.
+    *
+    * @param partitions how many storeID ranges to read in parallel; capped
+    *        at the connection pool's size less the connections the
+    *        background flushers need
+    * @return the totals per store and per state
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public Report run(int partitions) throws SQLException {
+      long start = System.nanoTime();
+      QueryMetrics.tag("storeAnalytics.stores");
+      ResultTable stores = this._esql.executeQueryAndReturnTable("SELECT storeID, state FROM Store;");
+      if (stores.getRowCount() == 0) {
+         return new Report(new StoreTotals(), new TreeMap<String, StoreTotals>(), 0, 0, System.nanoTime() - start);
+      }
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int row = 0; row < stores.getRowCount(); ++row) {
+         min = Math.min(min, stores.getInt(row, 0));
+         max = Math.max(max, stores.getInt(row, 0));
+      }
+
+      // split min..max into equal ranges, one connection each; bounds[i] is
+      // the first storeID of range i
+      long span = (long) max - min + 1;
+      int available = this._esql.getPool().getMaxSize() - backgroundConnections(this._esql);
+      int n = (int) Math.max(1, Math.min(Math.min(partitions, available), span));
+      int[] bounds = new int[n + 1];
+      for (int i = 0; i <= n; ++i) {
+         bounds[i] = (int) (min + span * i / n);
+      }
+
+      ForkJoinPool workers = new ForkJoinPool(n);
+      Partial all;
+      try {
+         all = workers.invoke(new RangeTask(bounds, 0, n));
+      } catch (RuntimeException e) {
+         // ForkJoinPool may wrap the task's exception again
+         for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+               throw (SQLException) cause;
+            }
+         }
+         throw e;
+      } finally {
+         workers.shutdown();
+      }
+
+      // stores without orders in the range are left out
+      Map<String, StoreTotals> byState = new TreeMap<String, StoreTotals>();
+      for (int row = 0; row < stores.getRowCount(); ++row) {
+         int id = stores.getInt(row, 0);
+         long orders = all.totals.orders(id);
+         if (orders == 0) {
+            continue;
+         }
+         String state = stores.getString(row, 1) == null ? "" : stores.getString(row, 1).trim();
+         StoreTotals ofState = byState.get(state);
+         if (ofState == null) {
+            ofState = new StoreTotals();
+            byState.put(state, ofState);
+         }
+         ofState.add(id, orders, all.totals.revenue(id));
+      }
+      return new Report(all.totals, byState, n, all.rows, System.nanoTime() - start);
+   }//end run
+
+   /**
+    * Prints the report for a date range; see the class comment for the
+    * arguments.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java StoreAnalytics <dbname> <port> <user> " +
+                            "[-from yyyy-mm-dd] [-to yyyy-mm-dd] [-partitions N]");
+         return;
+      }
+      LocalDate from = null;
+      LocalDate to = null;
+      int partitions = Runtime.getRuntime().availableProcessors();
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "-from":       from = LocalDate.parse(args[++i]); break;
+            case "-to":         to = LocalDate.parse(args[++i]); break;
+            case "-partitions": partitions = Integer.parseInt(args[++i]); break;
+            default:
+               System.err.println("Unknown option " + args[i]);
+               return;
+         }
+      }
+
+      Class.forName("org.postgresql.Driver");
+      // one connection per partition, plus one for each background flusher
+      if (System.getProperty("pizzastore.pool.max") == null) {
+         int flushers = System.getProperty("pizzastore.status.spoolDir") == null ? 1 : 2;
+         System.setProperty("pizzastore.pool.max", String.valueOf(Math.max(partitions, 1) + flushers));
+      }
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         new StoreAnalytics(esql, from, to).run(partitions).print(System.out);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end StoreAnalytics
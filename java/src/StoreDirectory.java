@@ -0,0 +1,289 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * This class defines an in-memory directory of the Store table, indexed by
+ * state and then city, so the viewStores drilldown is answered without SQL.
+ * Within a city the stores are kept sorted by reviewScore (best first) and
+ * split by isOpen, so the rating filter is a prefix scan.
+ *
+ * State and city names are matched case-insensitively, like the ILIKE
+ * comparisons they replace. Every Store row carries an updatedAt stamp set
+ * by a trigger, so each refresh re-reads only the stores added or changed
+ * since the last one (a new rating or isOpen included). A deleted row
+ * leaves no stamp, so each refresh also reads the storeIDs still in the
+ * table and drops the stores that are gone. invalidate() forces a full
+ * reload.
+ *
+ */
+public class StoreDirectory {
+
+   /**
+    * A single row of the Store table.
+    */
+   public static class StoreInfo {
+      public final int storeID;
+      public final String address;
+      public final String city;
+      public final String state;
+      public final boolean isOpen;
+      public final String isOpenText;
+      public final double reviewScore;
+      public final String reviewScoreText;
+
+      public StoreInfo(int storeID, String address, String city, String state,
+                       String isOpenText, double reviewScore, String reviewScoreText) {
+         this.storeID = storeID;
+         this.address = address;
+         this.city = city;
+         this.state = state;
+         this.isOpenText = isOpenText;
+         this.isOpen = isOpenText.trim().equalsIgnoreCase("yes");
+         this.reviewScore = reviewScore;
+         this.reviewScoreText = reviewScoreText;
+      }
+   }//end StoreInfo
+
+   // best rating first, then by storeID
+   private static final Comparator<StoreInfo> BY_RATING =
+      Comparator.comparingDouble((StoreInfo s) -> -s.reviewScore).thenComparingInt(s -> s.storeID);
+
+   // the stores of one city, sorted by rating and split by isOpen
+   private static class City {
+      final String name;
+      final List<StoreInfo> all = new ArrayList<StoreInfo>();
+      final List<StoreInfo> open = new ArrayList<StoreInfo>();
+      final List<StoreInfo> closed = new ArrayList<StoreInfo>();
+
+      City(String name) {
+         this.name = name;
+      }
+
+      void add(StoreInfo store) {
+         insertSorted(this.all, store);
+         insertSorted(store.isOpen ? this.open : this.closed, store);
+      }
+
+      void remove(StoreInfo store) {
+         this.all.remove(store);
+         (store.isOpen ? this.open : this.closed).remove(store);
+      }
+
+      private static void insertSorted(List<StoreInfo> list, StoreInfo store) {
+         int pos = Collections.binarySearch(list, store, BY_RATING);
+         list.add(pos < 0 ? -pos - 1 : pos, store);
+      }
+   }//end City
+
+   private static class State {
+      final String name;
+      final TreeMap<String, City> cities = new TreeMap<String, City>();
+
+      State(String name) {
+         this.name = name;
+      }
+   }//end State
+
+   private final PizzaStore _esql;
+   private final long _refreshMillis;
+
+   private static final String SELECT =
+      "SELECT storeID, address, city, state, isOpen, reviewScore, updatedAt FROM Store";
+
+   // a transaction can commit a little after the stamp it wrote, so each
+   // refresh looks back this far; re-reading a store is harmless
+   private static final long OVERLAP_MILLIS = 5000L;
+
+   private TreeMap<String, State> _states = new TreeMap<String, State>();
+   private HashMap<Integer, StoreInfo> _byId = new HashMap<Integer, StoreInfo>();
+   private long _changedSince = 0L;
+   private long _refreshedAt = 0L;
+   private boolean _loaded = false;
+
+   /**
+    * Creates a new, empty directory. Nothing is loaded until the first lookup.
+    *
+    * @param esql the PizzaStore used to load the Store table
+    * @param refreshMillis how often to check for added or changed stores
+    */
+   public StoreDirectory(PizzaStore esql, long refreshMillis) {
+      this._esql = esql;
+      this._refreshMillis = refreshMillis;
+   }//end StoreDirectory
+
+   /*
+    * Loads the directory on first use and afterwards pulls in the stores
+    * added or changed since the last refresh.
+    */
+   private void ensureFresh() throws SQLException {
+      long now = System.currentTimeMillis();
+      if (this._loaded && now - this._refreshedAt >= this._refreshMillis) {
+         QueryMetrics.tag("storeDirectory.refresh");
+         addRows(this._esql.executeQueryAndReturnTable(SELECT + " WHERE updatedAt > ?;",
+                                                       new Timestamp(this._changedSince - OVERLAP_MILLIS)));
+         QueryMetrics.tag("storeDirectory.ids");
+         removeDeleted(this._esql.executeQueryAndReturnTable("SELECT storeID FROM Store;"));
+         this._refreshedAt = now;
+      }
+      if (!this._loaded) {
+         this._states = new TreeMap<String, State>();
+         this._byId = new HashMap<Integer, StoreInfo>();
+         this._changedSince = 0L;
+         QueryMetrics.tag("storeDirectory.load");
+         addRows(this._esql.executeQueryAndReturnTable(SELECT + ";"));
+         this._loaded = true;
+         this._refreshedAt = now;
+      }
+   }//end ensureFresh
+
+   private static StoreInfo toStore(ResultTable rows, int row) {
+      boolean rated = !rows.isNull(row, 5);
+      double score = rows.getDouble(row, 5);
+      // printed like Postgres prints a real: 4 rather than 4.0
+      String scoreText = !rated ? "" : score == Math.rint(score) ? String.valueOf((long) score)
+                                                                 : String.valueOf((float) score);
+      return new StoreInfo(rows.getInt(row, 0), trim(rows.getString(row, 1)), trim(rows.getString(row, 2)),
+                           trim(rows.getString(row, 3)), trim(rows.getString(row, 4)), score, scoreText);
+   }
+
+   // adds new stores and replaces the ones already in the directory
+   private void addRows(ResultTable rows) {
+      for (int row = 0; row < rows.getRowCount(); ++row) {
+         this._changedSince = Math.max(this._changedSince, rows.getTimestampMillis(row, 6));
+      }
+      for (StoreInfo store : rows.map(StoreDirectory::toStore)) {
+         StoreInfo old = this._byId.put(store.storeID, store);
+         if (old != null) {
+            removeStore(old);
+         }
+         String stateKey = key(store.state);
+         State state = this._states.get(stateKey);
+         if (state == null) {
+            state = new State(store.state);
+            this._states.put(stateKey, state);
+         }
+         String cityKey = key(store.city);
+         City city = state.cities.get(cityKey);
+         if (city == null) {
+            city = new City(store.city);
+            state.cities.put(cityKey, city);
+         }
+         city.add(store);
+      }
+   }//end addRows
+
+   // drops the stores whose IDs are no longer in the table
+   private void removeDeleted(ResultTable ids) {
+      HashSet<Integer> present = new HashSet<Integer>(ids.getRowCount() * 2);
+      for (int row = 0; row < ids.getRowCount(); ++row) {
+         present.add(ids.getInt(row, 0));
+      }
+      Iterator<StoreInfo> it = this._byId.values().iterator();
+      while (it.hasNext()) {
+         StoreInfo store = it.next();
+         if (!present.contains(store.storeID)) {
+            it.remove();
+            removeStore(store);
+         }
+      }
+   }//end removeDeleted
+
+   private void removeStore(StoreInfo store) {
+      State state = this._states.get(key(store.state));
+      City city = state == null ? null : state.cities.get(key(store.city));
+      if (city == null) {
+         return;
+      }
+      city.remove(store);
+      if (city.all.isEmpty()) {
+         state.cities.remove(key(store.city));
+         if (state.cities.isEmpty()) {
+            this._states.remove(key(store.state));
+         }
+      }
+   }//end removeStore
+
+   private static String trim(String s) {
+      return s == null ? "" : s.trim();
+   }
+
+   private static String key(String s) {
+      return s.trim().toLowerCase(Locale.ROOT);
+   }
+
+   /**
+    * Forces a full reload on the next lookup.
+    */
+   public synchronized void invalidate() {
+      this._loaded = false;
+   }
+
+   /**
+    * @return every state that has a store, in alphabetical order
+    * @throws java.sql.SQLException when the directory cannot be loaded
+    */
+   public synchronized List<String> states() throws SQLException {
+      ensureFresh();
+      List<String> names = new ArrayList<String>(this._states.size());
+      for (State state : this._states.values()) {
+         names.add(state.name);
+      }
+      return names;
+   }
+
+   /**
+    * @param state the state name, matched case-insensitively
+    * @return every city of the state that has a store, in alphabetical order
+    * @throws java.sql.SQLException when the directory cannot be loaded
+    */
+   public synchronized List<String> cities(String state) throws SQLException {
+      ensureFresh();
+      List<String> names = new ArrayList<String>();
+      State s = this._states.get(key(state));
+      if (s != null) {
+         for (City city : s.cities.values()) {
+            names.add(city.name);
+         }
+      }
+      return names;
+   }
+
+   /**
+    * Returns the stores of a city, best rated first.
+    *
+    * @param state the state name, matched case-insensitively
+    * @param city the city name, matched case-insensitively
+    * @param isOpen true for open stores only, false for closed only, null for both
+    * @param minRating the lowest reviewScore to include
+    * @return the matching stores
+    * @throws java.sql.SQLException when the directory cannot be loaded
+    */
+   public synchronized List<StoreInfo> find(String state, String city, Boolean isOpen, double minRating)
+         throws SQLException {
+      ensureFresh();
+      List<StoreInfo> result = new ArrayList<StoreInfo>();
+      State s = this._states.get(key(state));
+      City c = s == null ? null : s.cities.get(key(city));
+      if (c == null) {
+         return result;
+      }
+      List<StoreInfo> stores = isOpen == null ? c.all : (isOpen ? c.open : c.closed);
+      for (StoreInfo store : stores) {
+         if (store.reviewScore < minRating) {
+            break;
+         }
+         result.add(store);
+      }
+      return result;
+   }//end find
+
+}//end StoreDirectory
@@ -0,0 +1,97 @@
+/**
+ * This class holds the profile of the user logged in on the current
+ * session, read once by LogIn, so the handlers do not query the Users
+ * table for the role on every menu choice. The session is bound to the
+ * thread running the menus, like SessionIO, and is only refreshed when
+ * updateProfile changes the user's own row.
+ *
+ */
+public class UserSession {
+
+   private static final ThreadLocal<UserSession> _current = new ThreadLocal<UserSession>();
+
+   private final String _login;
+   private String _password;
+   private String _role;
+   private String _favoriteItems;
+   private String _phoneNum;
+
+   /**
+    * Creates a new session from the user's row.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @param role the user role; surrounding spaces are dropped
+    * @param favoriteItems the favorite items
+    * @param phoneNum the phone number
+    */
+   public UserSession(String login, String password, String role, String favoriteItems, String phoneNum) {
+      this._login = login;
+      this._password = password;
+      this._role = role == null ? "" : role.trim();
+      this._favoriteItems = favoriteItems;
+      this._phoneNum = phoneNum;
+   }//end UserSession
+
+   /**
+    * Makes the session the current one for the calling thread.
+    *
+    * @param session the session started by LogIn
+    */
+   public static void begin(UserSession session) {
+      _current.set(session);
+   }
+
+   /**
+    * Ends the calling thread's session, e.g. on log out.
+    */
+   public static void end() {
+      _current.remove();
+   }
+
+   /**
+    * @param login the user a handler is acting for
+    * @return the current session if it belongs to login, otherwise null
+    */
+   public static UserSession forUser(String login) {
+      UserSession session = _current.get();
+      return session != null && session._login.equals(login) ? session : null;
+   }
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public String getPassword() {
+      return this._password;
+   }
+
+   public String getRole() {
+      return this._role;
+   }
+
+   public String getFavoriteItems() {
+      return this._favoriteItems;
+   }
+
+   public String getPhoneNum() {
+      return this._phoneNum;
+   }
+
+   /**
+    * Applies a change that updateProfile wrote to the user's row.
+    *
+    * @param column the Users column that changed
+    * @param value the new value
+    */
+   public void update(String column, String value) {
+      switch (column) {
+         case "password":      this._password = value; break;
+         case "role":          this._role = value.trim(); break;
+         case "favoriteItems": this._favoriteItems = value; break;
+         case "phoneNum":      this._phoneNum = value; break;
+         default: break;
+      }
+   }//end update
+
+}//end UserSession